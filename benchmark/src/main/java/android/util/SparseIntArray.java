@@ -0,0 +1,45 @@
+package android.util;
+
+import java.util.Arrays;
+
+/**
+ * The part of Android's SparseIntArray that Constants uses, with the same
+ * sorted keys and binary search, so the app's key tables run unchanged on
+ * the JVM.
+ */
+public class SparseIntArray {
+	private int[] keys = new int[10];
+	private int[] values = new int[10];
+	private int size = 0;
+
+	public int get(int key, int valueIfKeyNotFound) {
+		int i = Arrays.binarySearch(keys, 0, size, key);
+		return i < 0 ? valueIfKeyNotFound : values[i];
+	}
+
+	public void put(int key, int value) {
+		int i = Arrays.binarySearch(keys, 0, size, key);
+		if (i >= 0) {
+			values[i] = value;
+			return;
+		}
+		i = ~i;
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, 2 * size);
+			values = Arrays.copyOf(values, 2 * size);
+		}
+		System.arraycopy(keys, i, keys, i + 1, size - i);
+		System.arraycopy(values, i, values, i + 1, size - i);
+		keys[i] = key;
+		values[i] = value;
+		size++;
+	}
+
+	public int indexOfKey(int key) {
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,99 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encryption of one payload with the legacy cipher and Base64, the cache
+ * of constant commands, and the session cipher. The sizes are a single
+ * key command, a typical batch and a full packet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+	@Param({ "5", "64", "1024" })
+	public int size;
+
+	private byte[] payload;
+	private byte[] encoded;
+	private byte[] legacy;
+	private byte[] sealed;
+	private int sealedLength;
+	private byte[] out;
+	private final byte[] command = { 'K', 'B', 'P', '3', '7' };
+
+	private Security security;
+	private PayloadCache cache;
+	private SessionCipher client;
+	private SessionCipher server;
+
+	@Setup
+	public void setUp() throws Exception {
+		payload = new byte[size];
+		new Random(1).nextBytes(payload);
+		encoded = Base64Coder.encode(payload, 0, size).getBytes("US-ASCII");
+
+		KeyProvider keys = KeyProvider.get("benchmark");
+		security = keys.getSecurity();
+		cache = new PayloadCache(security, new String[] { "KBP37", "KBR37",
+				"MSR", "MLC" });
+		legacy = security.encrypt(payload, 0, size).getBytes("US-ASCII");
+		client = keys.getSessionCipher(42, true);
+		server = keys.getSessionCipher(42, false);
+
+		out = new byte[size + SessionCipher.OVERHEAD];
+		sealed = new byte[size + SessionCipher.OVERHEAD];
+		sealedLength = client.seal(payload, 0, size, sealed);
+	}
+
+	@Benchmark
+	public byte[] legacyEncrypt() throws Exception {
+		return security.encrypt(payload, 0, size).getBytes("US-ASCII");
+	}
+
+	@Benchmark
+	public byte[] legacyDecrypt() throws Exception {
+		return security.decrypt(legacy, 0, legacy.length);
+	}
+
+	@Benchmark
+	public byte[] cachedCommand() {
+		return cache.get(command, 0, command.length);
+	}
+
+	@Benchmark
+	public String base64Encode() {
+		return Base64Coder.encode(payload, 0, size);
+	}
+
+	@Benchmark
+	public byte[] base64Decode() {
+		return Base64Coder.decode(encoded, 0, encoded.length);
+	}
+
+	@Benchmark
+	public int sessionSeal() throws Exception {
+		return client.seal(payload, 0, size, out);
+	}
+
+	@Benchmark
+	public int sessionOpen() throws Exception {
+		return server.open(sealed, 0, sealedLength, out);
+	}
+}
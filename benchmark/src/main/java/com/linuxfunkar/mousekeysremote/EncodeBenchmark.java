@@ -0,0 +1,82 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building commands: the binary encoding done on the UI thread, its
+ * translation to text for version 1 servers, and the text commands of the
+ * key tables that the text protocol used to be built from.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+	private final byte[] buf = new byte[CommandRing.SLOT_SIZE];
+	private final byte[] text = new byte[2 * CommandRing.SLOT_SIZE];
+	private final byte[] key = new byte[CommandRing.SLOT_SIZE];
+	private final byte[] move = new byte[CommandRing.SLOT_SIZE];
+	private final Protocol.Reader reader = new Protocol.Reader();
+	private int keyLength;
+	private int moveLength;
+	private int code = 37;
+
+	@Setup
+	public void setUp() {
+		keyLength = Protocol.encodeKey(key, 0, true, code);
+		// Version 1 only has moves along one axis
+		moveLength = Protocol.encodeMove(move, 0, -12, 0);
+	}
+
+	@Benchmark
+	public int encodeKey() {
+		return Protocol.encodeKey(buf, 0, true, code);
+	}
+
+	@Benchmark
+	public int encodeMove() {
+		return Protocol.encodeMove(buf, 0, -12, 7);
+	}
+
+	@Benchmark
+	public int encodeText() {
+		return Protocol.encodeText(buf, 0, "MSR");
+	}
+
+	@Benchmark
+	public int keyToText() {
+		reader.reset(key, 0, keyLength);
+		return Protocol.toText(reader, text, 0);
+	}
+
+	@Benchmark
+	public int moveToText() {
+		reader.reset(move, 0, moveLength);
+		return Protocol.toText(reader, text, 0);
+	}
+
+	/** How the buttons encode a key of the layout */
+	@Benchmark
+	public int encodeActionPress() {
+		return Constants.encodeActionPress(Constants.CHRA, buf, 0);
+	}
+
+	/** The text command the old sendUDP call sites built per key */
+	@Benchmark
+	public String actionPressText() {
+		return Constants.getActionPress(Constants.CHRA);
+	}
+}
@@ -0,0 +1,105 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Commands from the UI thread's encoding to a loopback datagram through
+ * the real {@link CommandSender}, for each kind of server, and the bare
+ * send for comparison. The sender thread isn't started; each operation
+ * queues its commands and runs the sender loop on the benchmark thread,
+ * which sends them and flushes the batches at once as on stopping, so the
+ * batching window doesn't count. Nobody reads the receiving socket; once
+ * its buffer is full the kernel drops the datagrams, which doesn't change
+ * the cost of sending.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendBenchmark {
+	private static final String HOST = "127.0.0.1";
+
+	/**
+	 * text: version 1, binary: version 2 with the legacy cipher, sealed:
+	 * version 2 with the session cipher
+	 */
+	@Param({ "text", "binary", "sealed" })
+	public String server;
+
+	private DatagramChannel channel;
+	private UdpTransport transport;
+	private CommandSender sender;
+	private byte[] datagram;
+
+	private final byte[] action = new byte[CommandRing.SLOT_SIZE];
+
+	@Setup
+	public void setUp() throws Exception {
+		channel = DatagramChannel.open();
+		channel.socket().bind(new InetSocketAddress(HOST, 0));
+		int port = channel.socket().getLocalPort();
+		if ("text".equals(server))
+			ServerInfo.update(new ServerInfo(HOST, port, Protocol.VERSION_1,
+					0));
+		else
+			ServerInfo.update(new ServerInfo(HOST, port, Protocol.VERSION_2,
+					"sealed".equals(server) ? Protocol.CAP_AEAD : 0));
+		transport = new UdpTransport(HOST, port);
+		if (!transport.awaitResolved(2000))
+			throw new IllegalStateException("loopback not resolved");
+
+		KeyProvider keys = KeyProvider.get("benchmark");
+		sender = new CommandSender(64, Constants.getFixedCommands());
+		sender.setKeys(keys);
+		sender.setTransport(transport);
+		datagram = keys.getSecurity().encrypt("KBP1100")
+				.getBytes("US-ASCII");
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		transport.close();
+		channel.close();
+	}
+
+	@Benchmark
+	public boolean send() throws Exception {
+		return transport.send(datagram, 0, datagram.length);
+	}
+
+	/** A key of the keyboard layout, as the buttons send it */
+	@Benchmark
+	public long key() {
+		int length = Constants.encodeActionPress(Constants.CHRA, action, 0);
+		sender.sendCommand(action, 0, length);
+		length = Constants.encodeActionRelease(Constants.CHRA, action, 0);
+		sender.sendCommand(action, 0, length);
+		sender.run();
+		return sender.getSent();
+	}
+
+	/** A diagonal move, as the coalescer hands it on */
+	@Benchmark
+	public long move() {
+		sender.sendMove(-12, 7);
+		sender.run();
+		return sender.getSent();
+	}
+}
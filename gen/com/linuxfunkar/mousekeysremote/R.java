@@ -12,6 +12,7 @@ public final class R {
         public static final int lang_array=0x7f080000;
         public static final int layout_mode_array=0x7f080002;
         public static final int mouse_speed_array=0x7f080001;
+        public static final int pointer_curve_array=0x7f080003;
     }
     public static final class attr {
     }
@@ -50,6 +51,9 @@ public final class R {
         public static final int button_id=0x7f060000;
         public static final int button_sticky=0x7f060002;
         public static final int clickontap=0x7f06002d;
+        public static final int curve_points=0x7f06004d;
+        public static final int discovery=0x7f06004a;
+        public static final int entry_curve_points=0x7f06004e;
         public static final int entry_ip=0x7f060016;
         public static final int entry_kpcols=0x7f060021;
         public static final int entry_kprows=0x7f060023;
@@ -87,6 +91,8 @@ public final class R {
         public static final int password=0x7f060019;
         public static final int password_entry=0x7f06001a;
         public static final int pinch_zoom=0x7f060026;
+        public static final int pointer_curve=0x7f06004b;
+        public static final int pointer_curve_spinner=0x7f06004c;
         public static final int port=0x7f060017;
         public static final int sensor_settings=0x7f060032;
         public static final int sensors=0x7f060033;
@@ -137,6 +143,7 @@ public final class R {
         public static final int mnu_visible=0x7f070009;
         public static final int mouse_speed_prompt=0x7f070003;
         public static final int name=0x7f07000b;
+        public static final int pointer_curve_prompt=0x7f070013;
         public static final int security_context_failed_=0x7f070012;
         public static final int unhide_all=0x7f070011;
         public static final int wrong_response_from_server_at=0x7f070010;
@@ -0,0 +1,89 @@
+package com.linuxfunkar.mousekeysremote;
+
+/**
+ * Standard Base64 with padding and without line breaks, the same as
+ * android.util.Base64 with NO_WRAP. Plain Java so {@link Security} also
+ * runs outside Android, in the receiver tools and the benchmarks.
+ */
+final class Base64Coder {
+	private static final char[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+	private static final int[] values = new int[128];
+
+	static {
+		for (int i = 0; i < values.length; i++)
+			values[i] = -1;
+		for (int i = 0; i < alphabet.length; i++)
+			values[alphabet[i]] = i;
+	}
+
+	private Base64Coder() {
+	}
+
+	public static String encode(byte[] in, int offset, int length) {
+		char[] out = new char[(length + 2) / 3 * 4];
+		int o = 0;
+		int end = offset + length;
+		int i = offset;
+		for (; i + 2 < end; i += 3) {
+			int b = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8
+					| (in[i + 2] & 0xff);
+			out[o++] = alphabet[b >>> 18];
+			out[o++] = alphabet[(b >>> 12) & 0x3f];
+			out[o++] = alphabet[(b >>> 6) & 0x3f];
+			out[o++] = alphabet[b & 0x3f];
+		}
+		if (i < end) {
+			int b = (in[i] & 0xff) << 16;
+			if (i + 1 < end)
+				b |= (in[i + 1] & 0xff) << 8;
+			out[o++] = alphabet[b >>> 18];
+			out[o++] = alphabet[(b >>> 12) & 0x3f];
+			out[o++] = i + 1 < end ? alphabet[(b >>> 6) & 0x3f] : '=';
+			out[o++] = '=';
+		}
+		return new String(out);
+	}
+
+	/**
+	 * Decodes ASCII Base64 text.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the text is not valid Base64
+	 */
+	public static byte[] decode(byte[] in, int offset, int length) {
+		if (length % 4 != 0)
+			throw new IllegalArgumentException("bad length " + length);
+		int end = offset + length;
+		int padding = 0;
+		if (length > 0 && in[end - 1] == '=')
+			padding++;
+		if (length > 1 && in[end - 2] == '=')
+			padding++;
+		byte[] out = new byte[length / 4 * 3 - padding];
+		int o = 0;
+		for (int i = offset; i < end; i += 4) {
+			int b = value(in[i]) << 18 | value(in[i + 1]) << 12;
+			if (o < out.length)
+				out[o++] = (byte) (b >>> 16);
+			if (in[i + 2] != '=') {
+				b |= value(in[i + 2]) << 6;
+				if (o < out.length)
+					out[o++] = (byte) (b >>> 8);
+			}
+			if (in[i + 3] != '=') {
+				b |= value(in[i + 3]);
+				if (o < out.length)
+					out[o++] = (byte) b;
+			}
+		}
+		return out;
+	}
+
+	private static int value(byte c) {
+		int v = c >= 0 ? values[c] : -1;
+		if (v < 0)
+			throw new IllegalArgumentException("bad character " + c);
+		return v;
+	}
+}
@@ -0,0 +1,163 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Append-only binary log of the commands a client emitted, for replaying
+ * real sessions against a receiver. The file starts with the magic "MKRL"
+ * and a version byte. Each record is the time since the previous record in
+ * nanoseconds as a varint, the length of the command as a varint and the
+ * command in the binary {@link Protocol} form, which {@link Protocol#toText}
+ * turns back into the text the server would get.
+ */
+final class CommandLog {
+	private static final byte[] MAGIC = { 'M', 'K', 'R', 'L' };
+	private static final int VERSION = 1;
+
+	private CommandLog() {
+	}
+
+	/**
+	 * Writes a log. Appending and closing may happen on different threads.
+	 */
+	static final class Writer {
+		private final OutputStream out;
+		// Time as a varlong, length and command
+		private final byte[] record = new byte[10 + Protocol.MAX_VARINT
+				+ CommandRing.SLOT_SIZE];
+		private long last = -1;
+		private boolean closed = false;
+		private IOException error;
+
+		/**
+		 * @param out
+		 *            should be buffered, every record is a separate write
+		 */
+		public Writer(OutputStream out) throws IOException {
+			this.out = out;
+			out.write(MAGIC);
+			out.write(VERSION);
+		}
+
+		/**
+		 * Appends a command. Errors stop the log, they are reported by
+		 * {@link #close()}.
+		 *
+		 * @param nanos
+		 *            System.nanoTime() when the command was issued
+		 */
+		public synchronized void append(long nanos, byte[] command,
+				int offset, int length) {
+			if (closed || length > CommandRing.SLOT_SIZE)
+				return;
+			long delta = last < 0 ? 0 : Math.max(0, nanos - last);
+			last = nanos;
+			int pos = putVarlong(record, 0, delta);
+			pos = Protocol.putVarint(record, pos, length);
+			System.arraycopy(command, offset, record, pos, length);
+			try {
+				out.write(record, 0, pos + length);
+			} catch (IOException ex) {
+				error = ex;
+				closed = true;
+			}
+		}
+
+		public synchronized void close() throws IOException {
+			closed = true;
+			out.close();
+			if (error != null)
+				throw error;
+		}
+	}
+
+	/**
+	 * Reads a log record by record.
+	 */
+	static final class Reader {
+		private final InputStream in;
+		private final byte[] command = new byte[CommandRing.SLOT_SIZE];
+		private long time = 0;
+		private int length;
+
+		public Reader(InputStream in) throws IOException {
+			this.in = in;
+			for (int i = 0; i < MAGIC.length; i++)
+				if (in.read() != MAGIC[i])
+					throw new IOException("Not a command log");
+			int version = in.read();
+			if (version != VERSION)
+				throw new IOException("Unsupported command log version "
+						+ version);
+		}
+
+		/**
+		 * Reads the next record.
+		 *
+		 * @return false at the end of the log
+		 */
+		public boolean next() throws IOException {
+			int first = in.read();
+			if (first < 0)
+				return false;
+			time += readVarlong(first);
+			length = (int) readVarlong(in.read());
+			if (length > command.length)
+				throw new IOException("Command too long: " + length);
+			for (int n = 0; n < length;) {
+				int read = in.read(command, n, length - n);
+				if (read < 0)
+					throw new EOFException();
+				n += read;
+			}
+			return true;
+		}
+
+		/**
+		 * @return nanoseconds from the first record to the current one
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * @return the current command, valid up to {@link #getLength()}
+		 */
+		public byte[] getCommand() {
+			return command;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+
+		private long readVarlong(int b) throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (b < 0)
+					throw new EOFException();
+				value |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+				b = in.read();
+			}
+			throw new IOException("Malformed varint");
+		}
+	}
+
+	private static int putVarlong(byte[] buf, int pos, long value) {
+		while ((value & ~0x7fL) != 0) {
+			buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buf[pos++] = (byte) value;
+		return pos;
+	}
+}
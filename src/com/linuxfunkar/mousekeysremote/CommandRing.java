@@ -0,0 +1,110 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer ring of encoded commands.
+ * Commands are copied into fixed-size slots of one preallocated array, so
+ * offering and polling never allocate. Only one thread may call the offer
+ * methods and only one (other) thread may call poll. Every command carries
+ * the time it was offered.
+ */
+class CommandRing {
+	public static final int SLOT_SIZE = 256;
+
+	private final int capacity;
+	private final int mask;
+	private final byte[] data;
+	private final int[] lengths;
+	private final long[] times;
+	// Offer time of the command returned by the last poll
+	private long polledTime;
+
+	// Next slot to read, written by the consumer only
+	private final AtomicLong head = new AtomicLong();
+	// Next slot to write, written by the producer only
+	private final AtomicLong tail = new AtomicLong();
+
+	private volatile long dropped = 0;
+
+	/**
+	 * @param capacity
+	 *            number of slots, rounded up to a power of two
+	 */
+	public CommandRing(int capacity) {
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		this.capacity = size;
+		mask = size - 1;
+		data = new byte[size * SLOT_SIZE];
+		lengths = new int[size];
+		times = new long[size];
+	}
+
+	public boolean offer(byte[] src, int offset, int length) {
+		long t = tail.get();
+		if (length > SLOT_SIZE || t - head.get() >= capacity) {
+			dropped++;
+			return false;
+		}
+		int slot = (int) t & mask;
+		System.arraycopy(src, offset, data, slot * SLOT_SIZE, length);
+		lengths[slot] = length;
+		times[slot] = System.nanoTime();
+		// A volatile write, so a consumer that sees the producer's wakeup
+		// flag unset afterwards is sure to see the command
+		tail.set(t + 1);
+		return true;
+	}
+
+	/**
+	 * Copies the oldest command into dst, which must hold at least
+	 * {@link #SLOT_SIZE} bytes from offset.
+	 *
+	 * @return the length of the command or -1 if the ring is empty
+	 */
+	public int poll(byte[] dst, int offset) {
+		long h = head.get();
+		if (h == tail.get())
+			return -1;
+		int slot = (int) h & mask;
+		int length = lengths[slot];
+		System.arraycopy(data, slot * SLOT_SIZE, dst, offset, length);
+		polledTime = times[slot];
+		head.set(h + 1);
+		return length;
+	}
+
+	/**
+	 * @return System.nanoTime() when the command returned by the last poll
+	 *         was offered. Only for the consumer thread.
+	 */
+	public long getPolledTime() {
+		return polledTime;
+	}
+
+	/**
+	 * Drops every queued command. Only for the consumer thread.
+	 *
+	 * @return the number of commands dropped
+	 */
+	public int clear() {
+		long h = head.get();
+		long t = tail.get();
+		head.set(t);
+		return (int) (t - h);
+	}
+
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public long getDropped() {
+		return dropped;
+	}
+}
@@ -0,0 +1,847 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Encrypts and sends queued commands on a dedicated thread. The UI thread
+ * only encodes commands in the binary {@link Protocol} form and enqueues
+ * them into a {@link CommandRing}, so touch and sensor callbacks never wait
+ * for the cipher or the network. Commands are translated to text on the
+ * sender thread for servers that only speak version 1; for version 2
+ * servers all commands queued within a short window are batched into one
+ * datagram, which carries the session id, a sequence number and the send
+ * time. Every new transport and every new password starts a new session.
+ *
+ * If the server acknowledges reliable packets, key and text commands are
+ * batched separately from motion and kept in a {@link ReliableLane} until
+ * acknowledged, so a lost key release can't leave a key stuck down. A
+ * server that lost the session, by a restart or for being idle, answers
+ * with a reset; the sender then goes on in a new session and sends the
+ * reliable commands not acknowledged yet again. While
+ * the lane's window is full the next reliable packet is held back, and
+ * once it is full too the reliable commands behind it wait in a backlog
+ * while motion goes on. Motion is never retransmitted. Servers that
+ * support it get packets sealed by a {@link SessionCipher} instead of
+ * Base64 text. Smooth scrolling is turned
+ * into whole wheel steps for servers that don't take it, with the
+ * fractions carried over.
+ *
+ * The keys held down are tracked as they are sent. Their lease is renewed
+ * on the server with a frame added to the outgoing traffic, or a packet of
+ * its own while nothing else is sent, and they are pressed again in one
+ * batch when the connection comes back or the transport changes.
+ */
+class CommandSender implements Runnable {
+	private static final long IDLE_PARK = 100000000L; // 100 ms
+	private static final long RESOLVE_WAIT = 2000;
+	// How long a batch stays open for more commands
+	private static final long FLUSH_WINDOW = 2000000L; // 2 ms
+	// Lease of the held keys on the server and how often it is renewed
+	private static final int KEY_LEASE = 1500; // ms
+	private static final long LEASE_RENEWAL = 500000000L; // 500 ms
+	// How often acknowledgements are read while the reliable window is full
+	private static final long ACK_POLL = 1000000L; // 1 ms
+
+	/**
+	 * A packet being filled with commands and its own sequence numbers.
+	 */
+	private static final class Batch {
+		final int flags;
+		final byte[] packet = new byte[Protocol.MAX_PAYLOAD];
+		int size = 0;
+		long deadline;
+		int sequence;
+
+		Batch(int flags) {
+			this.flags = flags;
+		}
+	}
+
+	private final CommandRing ring;
+	private final String[] fixedCommands;
+	// Encoding buffer of the producer thread
+	private final byte[] scratch = new byte[CommandRing.SLOT_SIZE];
+
+	// State of the sender thread
+	private final byte[] command = new byte[CommandRing.SLOT_SIZE];
+	private final byte[] text = new byte[2 * CommandRing.SLOT_SIZE];
+	private final byte[] lease = new byte[CommandRing.SLOT_SIZE];
+	private final Batch motion = new Batch(0);
+	private final Batch reliable = new Batch(Protocol.FLAG_RELIABLE);
+	private final ReliableLane lane = new ReliableLane();
+	// Reliable commands waiting for room in the lane's window, and the
+	// ring it is rebuilt in for a new session
+	private CommandRing backlog;
+	private CommandRing spare;
+	private final HeldKeys held = new HeldKeys();
+	// Keys pressed in the commands carried over into a new session, and the
+	// lane slots they come from
+	private final HeldKeys carriedPresses = new HeldKeys();
+	private final int[] carriedSlots = new int[ReliableLane.WINDOW];
+	private PayloadCache cache;
+	private SessionCipher sessionCipher;
+	private KeyProvider sessionKeys;
+	private final byte[] sealed = new byte[Protocol.MAX_PAYLOAD
+			+ SessionCipher.OVERHEAD];
+	private final byte[] opened = new byte[Protocol.MAX_PAYLOAD];
+	private long leaseDue;
+	// Fraction of a wheel step not yet sent to a server without smooth
+	// scrolling
+	private int scrollRemainder = 0;
+	private final ByteBuffer reply = ByteBuffer.allocate(512);
+	private final Protocol.Reader reader = new Protocol.Reader();
+	private final Protocol.Reader frame = new Protocol.Reader();
+	private final SecureRandom random = new SecureRandom();
+	private UdpTransport sessionTransport;
+	private int session;
+
+	private volatile UdpTransport transport;
+	private volatile KeyProvider keys;
+	private volatile Thread thread;
+	private volatile boolean running = false;
+	private volatile boolean waiting = false;
+	private volatile boolean replay = false;
+	private volatile CommandLog.Writer recorder;
+
+	private volatile long sent = 0;
+	private volatile long failed = 0;
+
+	/**
+	 * @param fixedCommands
+	 *            the constant text commands whose encryption is cached
+	 */
+	public CommandSender(int capacity, String[] fixedCommands) {
+		ring = new CommandRing(capacity);
+		backlog = new CommandRing(capacity);
+		spare = new CommandRing(capacity);
+		this.fixedCommands = fixedCommands;
+	}
+
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		running = true;
+		thread = new Thread(this, "CommandSender");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the sender after the commands already queued have been sent.
+	 */
+	public synchronized void stop() {
+		Thread t = thread;
+		if (t == null)
+			return;
+		running = false;
+		LockSupport.unpark(t);
+		try {
+			t.join(1000);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		thread = null;
+	}
+
+	public void setTransport(UdpTransport transport) {
+		this.transport = transport;
+		// A new server hasn't seen the keys held down
+		replayHeldKeys();
+	}
+
+	public void setKeys(KeyProvider keys) {
+		if (keys == this.keys)
+			return;
+		this.keys = keys;
+		// The new session hasn't seen the keys held down
+		replayHeldKeys();
+	}
+
+	/**
+	 * Logs every command from now on with the time it was queued, or stops
+	 * logging if null. The caller closes the log.
+	 */
+	public void setRecorder(CommandLog.Writer recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Presses the keys that are held down again, after the server may have
+	 * lost them. Can be called from any thread.
+	 */
+	public void replayHeldKeys() {
+		replay = true;
+		Thread t = thread;
+		if (t != null)
+			LockSupport.unpark(t);
+	}
+
+	/*
+	 * The send methods queue one command each. They must only be called from
+	 * the producer (UI) thread and return false if the command was dropped
+	 * because the queue was full.
+	 */
+
+	public boolean sendText(String command) {
+		return offer(Protocol.encodeText(scratch, 0, command));
+	}
+
+	public boolean sendKey(boolean press, int code) {
+		return offer(Protocol.encodeKey(scratch, 0, press, code));
+	}
+
+	/**
+	 * Queues a command already in the binary {@link Protocol} form.
+	 */
+	public boolean sendCommand(byte[] command, int offset, int length) {
+		if (length < 0 || length > scratch.length)
+			return false;
+		System.arraycopy(command, offset, scratch, 0, length);
+		return offer(length);
+	}
+
+	public boolean sendMove(int dx, int dy) {
+		return offer(Protocol.encodeMove(scratch, 0, dx, dy));
+	}
+
+	public boolean sendWheel(int steps) {
+		return offer(Protocol.encodeWheel(scratch, 0, steps));
+	}
+
+	public boolean sendZoom(int diff) {
+		return offer(Protocol.encodeZoom(scratch, 0, diff));
+	}
+
+	/**
+	 * @param dx
+	 *            horizontal distance in 1/{@link Protocol#SCROLL_DETENT} of a
+	 *            wheel step, positive right
+	 * @param dy
+	 *            vertical distance in the same units, positive up
+	 */
+	public boolean sendScroll(int dx, int dy) {
+		return offer(Protocol.encodeScroll(scratch, 0, dx, dy));
+	}
+
+	private boolean offer(int length) {
+		if (length < 0)
+			return false;
+		boolean queued = ring.offer(scratch, 0, length);
+		if (waiting)
+			LockSupport.unpark(thread);
+		return queued;
+	}
+
+	public int getQueueDepth() {
+		return ring.size();
+	}
+
+	public int getQueueCapacity() {
+		return ring.capacity();
+	}
+
+	public long getDropped() {
+		return ring.getDropped();
+	}
+
+	public long getSent() {
+		return sent;
+	}
+
+	public long getFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return reliable packets waiting for an acknowledgement
+	 */
+	public int getInFlight() {
+		return lane.getInFlight();
+	}
+
+	public long getRetransmits() {
+		return lane.getRetransmits();
+	}
+
+	/**
+	 * @return reliable packets given up after too many retransmissions
+	 */
+	public long getAbandoned() {
+		return lane.getAbandoned();
+	}
+
+	/**
+	 * @return System.nanoTime() of the last acknowledgement from the
+	 *         server, 0 if none
+	 */
+	public long getLastAck() {
+		return lane.getLastAck();
+	}
+
+	/**
+	 * @return the smoothed round trip time in nanoseconds, -1 if unknown
+	 */
+	public long getSmoothedRtt() {
+		return lane.getSmoothedRtt();
+	}
+
+	/**
+	 * @return the cipher of the sender thread for the current password, or
+	 *         null if there is none
+	 */
+	private Security security() {
+		KeyProvider k = keys;
+		if (k == null)
+			return null;
+		try {
+			return k.getSecurity();
+		} catch (GeneralSecurityException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the cipher of the current session if the server takes
+	 *         sealed packets, otherwise null
+	 */
+	private SessionCipher sessionCipher() {
+		UdpTransport t = sessionTransport;
+		KeyProvider k = sessionKeys;
+		if (t == null || k == null
+				|| !serverInfo(t).hasCapability(Protocol.CAP_AEAD))
+			return null;
+		if (sessionCipher == null) {
+			try {
+				sessionCipher = k.getSessionCipher(session, true);
+			} catch (GeneralSecurityException ex) {
+				return null;
+			}
+		}
+		return sessionCipher;
+	}
+
+	/**
+	 * @return the cache of encrypted constant commands for the security,
+	 *         filled when the password changes
+	 */
+	private PayloadCache cache(Security s) {
+		if (cache == null || cache.getSecurity() != s)
+			cache = new PayloadCache(s, fixedCommands);
+		return cache;
+	}
+
+	@Override
+	public void run() {
+		// Warm up the cache before the first command
+		Security s = security();
+		if (s != null)
+			cache(s);
+		while (true) {
+			// Before the commands queued after the request
+			if (replay)
+				replay();
+			int length = ring.poll(command, 0);
+			if (length >= 0) {
+				CommandLog.Writer r = recorder;
+				if (r != null)
+					r.append(ring.getPolledTime(), command, 0, length);
+				add(length);
+				continue;
+			}
+			long now = System.nanoTime();
+			// Stopped, or never started and run on the caller's thread
+			if (!running) {
+				flush(motion);
+				flush(reliable);
+				if (reliable.size > 0)
+					// Still no room in the window, give up on the rest
+					failed++;
+				failed += backlog.clear();
+				return;
+			}
+			receiveAcks(now);
+			retransmit(now);
+			drainBacklog();
+			renewLease(now);
+
+			long left = IDLE_PARK;
+			left = Math.min(left, untilFlush(motion, now));
+			left = Math.min(left, untilFlush(reliable, now));
+			left = Math.min(left, lane.nextTimeout(now));
+			if (held.size() > 0)
+				left = Math.min(left, leaseDue - now);
+			if (left > 0)
+				park(left);
+		}
+	}
+
+	/**
+	 * Flushes the batch if its window has passed.
+	 *
+	 * @return nanoseconds until it has to be flushed
+	 */
+	private long untilFlush(Batch batch, long now) {
+		if (batch.size == 0)
+			return Long.MAX_VALUE;
+		long left = batch.deadline - now;
+		if (left > 0)
+			return left;
+		flush(batch);
+		// Held back for room in the reliable window
+		return batch.size == 0 ? Long.MAX_VALUE : ACK_POLL;
+	}
+
+	/**
+	 * Parks until a command is offered. The flag is raised before the ring
+	 * is checked again, so a command offered in between either is seen here
+	 * or sees the flag and unparks. parkNanos(Object, long) needs API level
+	 * 9.
+	 */
+	private void park(long nanos) {
+		waiting = true;
+		if (ring.size() == 0 && !replay && running)
+			LockSupport.parkNanos(nanos);
+		waiting = false;
+	}
+
+	/**
+	 * Adds the command to the packet being batched, or sends it on its own
+	 * if the server only speaks the text protocol.
+	 */
+	private void add(int length) {
+		held.track(command, 0, length);
+		UdpTransport t = transport;
+		ServerInfo info = serverInfo(t);
+		if (command[0] == Protocol.OP_SCROLL
+				&& !info.hasCapability(Protocol.CAP_SCROLL)) {
+			length = scrollToWheel(length);
+			if (length == 0)
+				return;
+		}
+		if (info.getVersion() < Protocol.VERSION_2) {
+			sendText(length);
+			return;
+		}
+		checkSession(t);
+		Batch batch = motion;
+		if (info.hasCapability(Protocol.CAP_RELIABLE)
+				&& Protocol.isReliable(command[0]))
+			batch = reliable;
+		if (batch == reliable && backlog.size() > 0)
+			// Behind the reliable commands already waiting
+			defer(length);
+		else
+			append(batch, info, length);
+	}
+
+	/**
+	 * Rewrites the scroll in {@link #command} as a wheel command with the
+	 * whole steps accumulated so far. Horizontal scrolling has no wheel
+	 * equivalent and is dropped.
+	 *
+	 * @return the length of the wheel command, 0 if there is no whole step
+	 *         yet
+	 */
+	private int scrollToWheel(int length) {
+		reader.reset(command, 0, length);
+		try {
+			reader.readByte();
+			reader.readSignedVarint();
+			int units = scrollRemainder + reader.readSignedVarint();
+			int steps = units / Protocol.SCROLL_DETENT;
+			scrollRemainder = units - steps * Protocol.SCROLL_DETENT;
+			return steps == 0 ? 0 : Protocol.encodeWheel(command, 0, steps);
+		} catch (ArrayIndexOutOfBoundsException ex) {
+			failed++;
+			return 0;
+		}
+	}
+
+	private ServerInfo serverInfo(UdpTransport t) {
+		if (t == null)
+			return ServerInfo.get("", -1);
+		return t.getServerInfo();
+	}
+
+	/**
+	 * Sends the command in {@link #command} on its own as a version 1 text
+	 * command. Version 1 servers only move along one axis per command, so a
+	 * diagonal move goes out as XMM and then YMM.
+	 */
+	private void sendText(int length) {
+		flush(motion);
+		flush(reliable);
+		if (command[0] == Protocol.OP_MOVE) {
+			reader.reset(command, 0, length);
+			try {
+				reader.readByte();
+				int dx = reader.readSignedVarint();
+				int dy = reader.readSignedVarint();
+				if (dx != 0 && dy != 0) {
+					sendOneText(Protocol.encodeMove(command, 0, dx, 0));
+					length = Protocol.encodeMove(command, 0, 0, dy);
+				}
+			} catch (ArrayIndexOutOfBoundsException ex) {
+				// Malformed, rejected by toText
+			}
+		}
+		sendOneText(length);
+	}
+
+	private void sendOneText(int length) {
+		reader.reset(command, 0, length);
+		int size = Protocol.toText(reader, text, 0);
+		if (size < 0)
+			failed++;
+		else
+			send(text, size, true);
+	}
+
+	/**
+	 * Starts a new session if the transport or the password has changed.
+	 * The session cipher counts its packets from zero, so a session id must
+	 * never be used again with the same key, not even after switching back
+	 * to an earlier password.
+	 */
+	private void checkSession(UdpTransport t) {
+		KeyProvider k = keys;
+		if (t == sessionTransport && k == sessionKeys)
+			return;
+		flush(motion);
+		flush(reliable);
+		if (reliable.size > 0) {
+			// Held back for the old session; the keys held down are
+			// pressed again on the new transport anyway
+			reliable.size = 0;
+			failed++;
+		}
+		failed += backlog.clear();
+		sessionTransport = t;
+		sessionKeys = k;
+		newSession();
+	}
+
+	private void newSession() {
+		session = random.nextInt();
+		motion.sequence = 0;
+		reliable.sequence = 0;
+		lane.reset();
+		sessionCipher = null;
+	}
+
+	/**
+	 * Goes on in a new session after the server said it lost the current
+	 * one. The keys held down whose press it had acknowledged are pressed
+	 * again, then the reliable commands it hasn't acknowledged are queued
+	 * again in their order, all ahead of the backlog.
+	 */
+	private void restartSession() {
+		flush(motion);
+		int slots = 0;
+		int slot;
+		while ((slot = lane.takeOldest()) >= 0)
+			carriedSlots[slots++] = slot;
+		carriedPresses.clear();
+		for (int i = 0; i < slots; i++)
+			carryOver(lane.packet(carriedSlots[i]),
+					lane.length(carriedSlots[i]), false);
+		carryOver(reliable.packet, reliable.size, false);
+
+		spare.clear();
+		int[] codes = held.codes();
+		for (int i = 0; i < held.size(); i++) {
+			if (!carriedPresses.contains(codes[i])
+					&& !spare.offer(command, 0,
+							Protocol.encodeKey(command, 0, true, codes[i])))
+				failed++;
+		}
+		for (int i = 0; i < slots; i++)
+			carryOver(lane.packet(carriedSlots[i]),
+					lane.length(carriedSlots[i]), true);
+		carryOver(reliable.packet, reliable.size, true);
+		reliable.size = 0;
+		int length;
+		while ((length = backlog.poll(command, 0)) >= 0) {
+			if (!spare.offer(command, 0, length))
+				failed++;
+		}
+		CommandRing carried = spare;
+		spare = backlog;
+		backlog = carried;
+		newSession();
+	}
+
+	/**
+	 * Goes through the commands of a reliable packet of the old session,
+	 * leaving out lease renewals.
+	 *
+	 * @param queue
+	 *            whether to queue them in {@link #spare}, otherwise only
+	 *            their key presses are noted in {@link #carriedPresses}
+	 */
+	private void carryOver(byte[] packet, int length, boolean queue) {
+		if (length == 0)
+			return;
+		reader.reset(packet, 0, length);
+		try {
+			// Version, flags, session, time and sequence number
+			reader.readByte();
+			reader.readByte();
+			reader.readInt();
+			reader.readInt();
+			reader.readVarint();
+			while (reader.nextFrame(frame)) {
+				int offset = frame.position();
+				int size = frame.remaining();
+				int op = frame.readByte();
+				if (op == Protocol.OP_LEASE)
+					continue;
+				if (!queue) {
+					if (op == Protocol.OP_KEY_PRESS)
+						carriedPresses.press(frame.readVarint());
+				} else if (!spare.offer(packet, offset, size)) {
+					failed++;
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException ex) {
+			if (queue)
+				failed++;
+		}
+	}
+
+	/**
+	 * Adds the command in {@link #command} to the batch, and renews the
+	 * lease of the held keys in it if that is due.
+	 */
+	private void append(Batch batch, ServerInfo info, int length) {
+		if (batch.size + Protocol.MAX_VARINT + length > batch.packet.length) {
+			flush(batch);
+			if (batch.size > 0) {
+				// Held back for room in the window
+				defer(length);
+				return;
+			}
+		}
+		if (batch.size == 0) {
+			batch.size = Protocol.startPacket(batch.packet, batch.flags,
+					session, ++batch.sequence);
+			batch.deadline = System.nanoTime() + FLUSH_WINDOW;
+			if (info.hasCapability(Protocol.CAP_LEASE) && held.size() > 0
+					&& System.nanoTime() - leaseDue >= 0)
+				appendLease(batch);
+		}
+		batch.size = Protocol.putVarint(batch.packet, batch.size, length);
+		System.arraycopy(command, 0, batch.packet, batch.size, length);
+		batch.size += length;
+	}
+
+	private void appendLease(Batch batch) {
+		int size = Protocol.encodeLease(lease, 0, KEY_LEASE, held.codes(),
+				held.size());
+		if (size < 0 || batch.size + Protocol.MAX_VARINT + size > batch.packet.length)
+			return;
+		batch.size = Protocol.putVarint(batch.packet, batch.size, size);
+		System.arraycopy(lease, 0, batch.packet, batch.size, size);
+		batch.size += size;
+		leaseDue = System.nanoTime() + LEASE_RENEWAL;
+	}
+
+	/**
+	 * Renews the lease of the held keys in a packet of its own when there
+	 * was no traffic to carry it.
+	 */
+	private void renewLease(long now) {
+		UdpTransport t = transport;
+		if (held.size() == 0 || now - leaseDue < 0 || t != sessionTransport
+				|| !serverInfo(t).hasCapability(Protocol.CAP_LEASE))
+			return;
+		if (motion.size == 0) {
+			motion.size = Protocol.startPacket(motion.packet, motion.flags,
+					session, ++motion.sequence);
+			motion.deadline = now;
+		}
+		appendLease(motion);
+		flush(motion);
+	}
+
+	/**
+	 * Presses all held keys again, in one packet if the server takes
+	 * version 2.
+	 */
+	private void replay() {
+		replay = false;
+		UdpTransport t = transport;
+		if (t == null || held.size() == 0)
+			return;
+		ServerInfo info = serverInfo(t);
+		int[] codes = held.codes();
+		if (info.getVersion() < Protocol.VERSION_2) {
+			for (int i = 0; i < held.size(); i++)
+				sendText(Protocol.encodeKey(command, 0, true, codes[i]));
+			return;
+		}
+		checkSession(t);
+		Batch batch = info.hasCapability(Protocol.CAP_RELIABLE) ? reliable
+				: motion;
+		flush(batch);
+		leaseDue = System.nanoTime();
+		for (int i = 0; i < held.size(); i++)
+			append(batch, info, Protocol.encodeKey(command, 0, true, codes[i]));
+		flush(batch);
+	}
+
+	private void flush(Batch batch) {
+		if (batch.size == 0)
+			return;
+		if (batch == reliable && !lane.hasRoom(batch.sequence))
+			// The window is full of unacknowledged packets. A sequence
+			// number without a copy to retransmit would leave the server
+			// waiting at the gap, so the packet stays here until there is
+			// room.
+			return;
+		Protocol.stampPacket(batch.packet, Protocol.micros());
+		if (batch == reliable)
+			lane.add(batch.sequence, batch.packet, batch.size,
+					System.nanoTime());
+		send(batch.packet, batch.size);
+		batch.size = 0;
+	}
+
+	/**
+	 * Puts the reliable command in {@link #command} in the backlog, to be
+	 * batched once the window has room.
+	 */
+	private void defer(int length) {
+		if (!backlog.offer(command, 0, length))
+			failed++;
+	}
+
+	/**
+	 * Moves reliable commands from the backlog into the batch as far as
+	 * acknowledgements made room in the window.
+	 */
+	private void drainBacklog() {
+		if (backlog.size() == 0)
+			return;
+		UdpTransport t = transport;
+		checkSession(t);
+		ServerInfo info = serverInfo(t);
+		while (backlog.size() > 0) {
+			if (reliable.size + Protocol.MAX_VARINT + CommandRing.SLOT_SIZE
+					> reliable.packet.length) {
+				flush(reliable);
+				if (reliable.size > 0)
+					return;
+			}
+			append(reliable, info, backlog.poll(command, 0));
+		}
+	}
+
+	/**
+	 * Sends the reliable packets whose acknowledgement is overdue again.
+	 */
+	private void retransmit(long now) {
+		int slot;
+		while ((slot = lane.due(now)) >= 0) {
+			if (lane.retransmit(slot, now)) {
+				byte[] p = lane.packet(slot);
+				Protocol.stampPacket(p, Protocol.micros());
+				send(p, lane.length(slot));
+			}
+		}
+	}
+
+	/**
+	 * Reads the acknowledgements the server sent back since the last call.
+	 */
+	private void receiveAcks(long now) {
+		UdpTransport t = sessionTransport;
+		Security s = security();
+		if (t == null || t != transport || s == null)
+			return;
+		try {
+			while (true) {
+				reply.clear();
+				if (t.receive(reply) <= 0)
+					return;
+				byte[] ack = reply.array();
+				int length = reply.position();
+				if (SessionCipher.isSealed(ack, 0, length)) {
+					SessionCipher c = sessionCipher();
+					length = c == null ? -1 : c.open(ack, 0, length, opened);
+					if (length < 0)
+						continue;
+					ack = opened;
+				} else {
+					ack = s.decrypt(ack, 0, length);
+					length = ack.length;
+				}
+				reader.reset(ack, 0, length);
+				if (reader.remaining() < 6
+						|| reader.readByte() != Protocol.VERSION_2)
+					continue;
+				int flags = reader.readByte();
+				if ((flags & Protocol.FLAG_ACK) == 0
+						|| reader.readInt() != session)
+					continue;
+				if ((flags & Protocol.FLAG_RESET) != 0) {
+					restartSession();
+					continue;
+				}
+				int cumulative = reader.readVarint();
+				int received = reader.readInt();
+				lane.acknowledge(cumulative, received, now);
+			}
+		} catch (Exception ex) {
+			// Garbage or a closed socket, the retransmissions continue
+		}
+	}
+
+	private void send(byte[] payload, int size) {
+		send(payload, size, false);
+	}
+
+	/**
+	 * Encrypts and sends a payload. Version 2 packets are sealed by the
+	 * session cipher if the server takes it, everything else goes through
+	 * the legacy cipher.
+	 *
+	 * @param fixed
+	 *            whether the payload is a text command, which may be one of
+	 *            the constant commands whose encryption is cached
+	 */
+	private void send(byte[] payload, int size, boolean fixed) {
+		UdpTransport t = transport;
+		Security s = security();
+		if (t == null || s == null) {
+			failed++;
+			return;
+		}
+		try {
+			if (!t.isResolved())
+				t.awaitResolved(RESOLVE_WAIT);
+			SessionCipher c = fixed ? null : sessionCipher();
+			byte[] msg = null;
+			int length;
+			if (c != null) {
+				msg = sealed;
+				length = c.seal(payload, 0, size, sealed);
+			} else {
+				if (fixed)
+					msg = cache(s).get(payload, 0, size);
+				if (msg == null)
+					msg = s.encrypt(payload, 0, size).getBytes("US-ASCII");
+				length = msg.length;
+			}
+			if (t.send(msg, 0, length))
+				sent++;
+			else
+				failed++;
+		} catch (Exception ex) {
+			failed++;
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package com.linuxfunkar.mousekeysremote;
 
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 public class Constants {
 	// Codes fr keyboard layout
@@ -162,6 +163,8 @@ public class Constants {
 
 	private static final SparseArray<String> actionNames = new SparseArray<String>();
 	private static final SparseArray<String> action = new SparseArray<String>();
+	// Key codes of the actions that are plain key presses
+	private static final SparseIntArray keyCodes = new SparseIntArray();
 
 	static {
 		for (Object[] entry : key_map) {
@@ -169,6 +172,9 @@ public class Constants {
 					entry[1].toString());
 			action.put(Integer.parseInt(entry[0].toString()),
 					entry[2].toString());
+			if (entry[2] instanceof Integer)
+				keyCodes.put(Integer.parseInt(entry[0].toString()),
+						((Integer) entry[2]).intValue());
 		}
 	}
 
@@ -179,23 +185,61 @@ public class Constants {
 	public static String getActionPress(int id) {
 		if (action.indexOfKey(id) < 0)
 			return "NOP";
-		Object act = action.get(id);
-		try {
-			return "KBP" + Integer.valueOf(act.toString());
-		} catch (NumberFormatException ex) {
-			return act.toString();
-		}
+		int code = keyCodes.get(id, -1);
+		if (code >= 0)
+			return "KBP" + code;
+		return action.get(id);
 	}
 
 	public static String getActionRelease(int id) {
 		if (action.indexOfKey(id) < 0)
 			return "NOP";
-		Object act = action.get(id);
-		try {
-			return "KBR" + Integer.valueOf(act.toString());
-		} catch (NumberFormatException ex) {
-			return act.toString() + "R";
+		int code = keyCodes.get(id, -1);
+		if (code >= 0)
+			return "KBR" + code;
+		return action.get(id) + "R";
+	}
+
+	/**
+	 * Encodes the press of an action as a binary {@link Protocol} command.
+	 *
+	 * @return the position after the command
+	 */
+	public static int encodeActionPress(int id, byte[] buf, int pos) {
+		int code = keyCodes.get(id, -1);
+		if (code >= 0)
+			return Protocol.encodeKey(buf, pos, true, code);
+		return Protocol.encodeText(buf, pos, getActionPress(id));
+	}
+
+	public static int encodeActionRelease(int id, byte[] buf, int pos) {
+		int code = keyCodes.get(id, -1);
+		if (code >= 0)
+			return Protocol.encodeKey(buf, pos, false, code);
+		return Protocol.encodeText(buf, pos, getActionRelease(id));
+	}
+
+	// Text commands sent by the UI itself rather than through an action: the
+	// literal sendUDP calls in MouseKeysRemote, some of which are also
+	// action presses. A tap clicks with MLC and MLR.
+	private static final String[] uiCommands = { "MMC", "MSR", "MSL", "MSU",
+			"MSD", "MML", "MMR", "MMU", "MMD", "MLC", "MLR" };
+
+	/**
+	 * @return every text command that never changes: the press and release
+	 *         of each action and the fixed mouse commands
+	 */
+	public static String[] getFixedCommands() {
+		String[] commands = new String[2 * key_map.length + uiCommands.length];
+		int n = 0;
+		for (Object[] entry : key_map) {
+			int id = Integer.parseInt(entry[0].toString());
+			commands[n++] = getActionPress(id);
+			commands[n++] = getActionRelease(id);
 		}
+		for (String command : uiCommands)
+			commands[n++] = command;
+		return commands;
 	}
 
 	public static String getServer() {
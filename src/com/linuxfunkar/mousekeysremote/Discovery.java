@@ -0,0 +1,179 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Finds a server on the local network. The client broadcasts the command
+ * "discover" with a random nonce in hex, encrypted like any other, so only
+ * servers that know the password answer. They reply with "here", the
+ * protocol version, the port they listen on, their capabilities and a
+ * {@link ReplyAuthenticator} tag over the reply and the nonce. Answers
+ * without a valid tag are ignored, so no other host on the network can
+ * point the client elsewhere, not even by replaying a real answer.
+ *
+ * The last server found is pinged at the same time from the same socket,
+ * so when it is still there the answer takes one round trip, not the
+ * broadcast timeout.
+ */
+final class Discovery {
+	public static final String PROBE = "discover";
+
+	private static final byte[] HERE = { 'h', 'e', 'r', 'e' };
+	private static final String BROADCAST = "255.255.255.255";
+	private static final int NONCE = 8;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private Discovery() {
+	}
+
+	/**
+	 * @return the nonce of a probe, or null if the command is none
+	 */
+	public static byte[] parseProbe(String command) {
+		if (!command.startsWith(PROBE)
+				|| command.length() != PROBE.length() + 2 * NONCE)
+			return null;
+		byte[] nonce = new byte[NONCE];
+		for (int i = 0; i < NONCE; i++) {
+			int hi = Character.digit(command.charAt(PROBE.length() + 2 * i),
+					16);
+			int lo = Character.digit(
+					command.charAt(PROBE.length() + 2 * i + 1), 16);
+			if (hi < 0 || lo < 0)
+				return null;
+			nonce[i] = (byte) (hi << 4 | lo);
+		}
+		return nonce;
+	}
+
+	/**
+	 * Writes the answer to a probe.
+	 *
+	 * @return the length of the reply
+	 */
+	public static int writeReply(byte[] buf, int version, int port,
+			int capabilities, byte[] nonce, ReplyAuthenticator authenticator) {
+		int pos = 0;
+		for (int i = 0; i < HERE.length; i++)
+			buf[pos++] = HERE[i];
+		buf[pos++] = (byte) version;
+		pos = Protocol.putVarint(buf, pos, port);
+		pos = Protocol.putVarint(buf, pos, capabilities);
+		return authenticator.sign(nonce, buf, pos);
+	}
+
+	/**
+	 * Probes the network and the last known server, blocking for up to
+	 * timeout milliseconds.
+	 *
+	 * @param cachedHost
+	 *            the server found last time, or "" if none
+	 * @param port
+	 *            the port servers listen on for probes
+	 * @return the first server that answered, or null
+	 */
+	public static ServerInfo find(KeyProvider keys, String cachedHost,
+			int port, int timeout) throws IOException,
+			GeneralSecurityException {
+		ReplyAuthenticator authenticator = keys.getReplyAuthenticator();
+		byte[] nonce = new byte[NONCE];
+		random.nextBytes(nonce);
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			socket.setBroadcast(true);
+			if (cachedHost.length() > 0) {
+				byte[] ping = keys.getSecurity().encrypt("ping")
+						.getBytes("US-ASCII");
+				try {
+					socket.send(new DatagramPacket(ping, ping.length,
+							new InetSocketAddress(cachedHost, port)));
+				} catch (IOException ex) {
+					// Unresolvable or unreachable, the broadcast may still
+					// find it
+				}
+			}
+			byte[] probe = keys.getSecurity().encrypt(probe(nonce))
+					.getBytes("US-ASCII");
+			socket.send(new DatagramPacket(probe, probe.length,
+					new InetSocketAddress(BROADCAST, port)));
+
+			byte[] buf = new byte[64];
+			DatagramPacket response = new DatagramPacket(buf, buf.length);
+			long deadline = System.currentTimeMillis() + timeout;
+			while (true) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0)
+					return null;
+				socket.setSoTimeout((int) left);
+				response.setData(buf, 0, buf.length);
+				try {
+					socket.receive(response);
+				} catch (SocketTimeoutException ex) {
+					return null;
+				}
+				ServerInfo info = parse(buf, response.getLength(), response
+						.getAddress().getHostAddress(), port, cachedHost,
+						nonce, authenticator);
+				if (info != null)
+					return info;
+			}
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static String probe(byte[] nonce) {
+		StringBuilder probe = new StringBuilder(PROBE);
+		for (int i = 0; i < nonce.length; i++) {
+			probe.append(HEX[(nonce[i] >> 4) & 0xf]);
+			probe.append(HEX[nonce[i] & 0xf]);
+		}
+		return probe.toString();
+	}
+
+	/**
+	 * @return the server a reply describes, or null if it is neither a
+	 *         pong from the cached server nor an authentic answer to the
+	 *         probe
+	 */
+	private static ServerInfo parse(byte[] buf, int length, String from,
+			int port, String cachedHost, byte[] nonce,
+			ReplyAuthenticator authenticator) {
+		int version = Protocol.parsePongVersion(buf, 0, length,
+				authenticator);
+		if (version > 0) {
+			// The cached host may be a name, the reply comes from its
+			// address, so keep the name
+			return new ServerInfo(cachedHost, port, version,
+					Protocol.parsePongCapabilities(buf, 0, length));
+		}
+		if (length <= HERE.length + ReplyAuthenticator.TAG)
+			return null;
+		for (int i = 0; i < HERE.length; i++)
+			if (buf[i] != HERE[i])
+				return null;
+		if (!authenticator.verify(nonce, buf, 0, length))
+			return null;
+		Protocol.Reader reader = new Protocol.Reader();
+		reader.reset(buf, HERE.length, length - HERE.length
+				- ReplyAuthenticator.TAG);
+		try {
+			int serverVersion = Math.max(reader.readByte(), Protocol.VERSION_1);
+			int serverPort = reader.readVarint();
+			int capabilities = reader.hasRemaining() ? reader.readVarint()
+					: 0;
+			return new ServerInfo(from, serverPort, serverVersion,
+					capabilities);
+		} catch (ArrayIndexOutOfBoundsException ex) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package com.linuxfunkar.mousekeysremote;
+
+/**
+ * The keys the client currently holds down on the server, as seen in the
+ * key commands passing through the sender thread. Used to renew their
+ * leases and to press them again after a reconnect. Only used from the
+ * sender thread.
+ */
+class HeldKeys {
+	public static final int MAX_KEYS = 32;
+
+	private final int[] codes = new int[MAX_KEYS];
+	private int count = 0;
+
+	/**
+	 * Updates the table from an encoded command.
+	 */
+	public void track(byte[] command, int offset, int length) {
+		if (length < 2)
+			return;
+		int op = command[offset];
+		if (op != Protocol.OP_KEY_PRESS && op != Protocol.OP_KEY_RELEASE)
+			return;
+		int code = 0;
+		for (int i = 1, shift = 0; i < length && shift < 32; i++, shift += 7) {
+			int b = command[offset + i];
+			code |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				break;
+		}
+		if (op == Protocol.OP_KEY_PRESS)
+			press(code);
+		else
+			release(code);
+	}
+
+	public void press(int code) {
+		for (int i = 0; i < count; i++)
+			if (codes[i] == code)
+				return;
+		if (count < MAX_KEYS)
+			codes[count++] = code;
+	}
+
+	public void release(int code) {
+		for (int i = 0; i < count; i++) {
+			if (codes[i] == code) {
+				codes[i] = codes[--count];
+				return;
+			}
+		}
+	}
+
+	public boolean contains(int code) {
+		for (int i = 0; i < count; i++)
+			if (codes[i] == code)
+				return true;
+		return false;
+	}
+
+	public void clear() {
+		count = 0;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the codes of the held keys, valid up to {@link #size()}
+	 */
+	public int[] codes() {
+		return codes;
+	}
+}
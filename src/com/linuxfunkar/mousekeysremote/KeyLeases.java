@@ -0,0 +1,130 @@
+package com.linuxfunkar.mousekeysremote;
+
+/**
+ * Receiver side of the key leases. A key pressed by a client that sends
+ * {@link Protocol#OP_LEASE} renewals is released when its lease runs out,
+ * so a client that vanishes while holding a key doesn't leave it stuck
+ * down. Keys of clients that never sent a lease are held until released,
+ * as with the text protocol.
+ *
+ * A client that was cut off for longer than the lease still holds the key
+ * and lists it again in its next renewal, which presses it again. Only
+ * keys that expired are pressed again, not ones the client released, so a
+ * renewal that arrives after the release can't bring a key back.
+ */
+class KeyLeases {
+	private static final int MAX_KEYS = 64;
+
+	public interface LeaseListener {
+		/**
+		 * Called for a key whose lease ran out.
+		 */
+		void onExpired(int code);
+
+		/**
+		 * Called for an expired key that a renewal listed as still held.
+		 */
+		void onRestored(int code);
+	}
+
+	private final int[] codes = new int[MAX_KEYS];
+	private final long[] expires = new long[MAX_KEYS];
+	private int count = 0;
+	// Keys released by expiry and not pressed or released since
+	private final int[] expired = new int[MAX_KEYS];
+	private int expiredCount = 0;
+	// Lease in nanoseconds announced by the client, 0 before the first one
+	private long lease = 0;
+
+	/**
+	 * @param now
+	 *            System.nanoTime()
+	 */
+	public void press(int code, long now) {
+		forgetExpired(code);
+		int i = indexOf(code);
+		if (i < 0) {
+			if (count == MAX_KEYS)
+				return;
+			i = count++;
+			codes[i] = code;
+		}
+		expires[i] = lease > 0 ? now + lease : Long.MAX_VALUE;
+	}
+
+	public void release(int code) {
+		forgetExpired(code);
+		remove(code);
+	}
+
+	private void remove(int code) {
+		int i = indexOf(code);
+		if (i >= 0) {
+			count--;
+			codes[i] = codes[count];
+			expires[i] = expires[count];
+		}
+	}
+
+	/**
+	 * Renews the lease of the listed keys and presses listed keys that
+	 * expired again. Held keys that are not listed keep their old lease,
+	 * the renewal may be older than their press.
+	 */
+	public void renew(int millis, int[] renewed, int renewedCount, long now,
+			LeaseListener listener) {
+		lease = millis * 1000000L;
+		for (int n = 0; n < renewedCount; n++) {
+			int code = renewed[n];
+			int i = indexOf(code);
+			if (i >= 0) {
+				expires[i] = now + lease;
+			} else if (forgetExpired(code)) {
+				press(code, now);
+				listener.onRestored(code);
+			}
+		}
+		for (int i = 0; i < count; i++)
+			if (expires[i] == Long.MAX_VALUE)
+				expires[i] = now + lease;
+	}
+
+	/**
+	 * Releases the keys whose lease ran out. Should be called periodically.
+	 */
+	public void expire(long now, LeaseListener listener) {
+		for (int i = count - 1; i >= 0; i--) {
+			if (now - expires[i] >= 0 && expires[i] != Long.MAX_VALUE) {
+				int code = codes[i];
+				remove(code);
+				if (expiredCount < MAX_KEYS)
+					expired[expiredCount++] = code;
+				listener.onExpired(code);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the key had expired
+	 */
+	private boolean forgetExpired(int code) {
+		for (int i = 0; i < expiredCount; i++) {
+			if (expired[i] == code) {
+				expired[i] = expired[--expiredCount];
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	private int indexOf(int code) {
+		for (int i = 0; i < count; i++)
+			if (codes[i] == code)
+				return i;
+		return -1;
+	}
+}
@@ -0,0 +1,131 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Key material derived from the password, shared by the activity, the
+ * sender thread and {@link PingService}. The 2048 rounds of the
+ * PBEWithMD5AndDES key derivation (PKCS #5 PBKDF1 with MD5) run once per
+ * password instead of for every cipher, and each thread gets its own
+ * {@link Security} built from the derived key, since ciphers must not be
+ * shared between threads.
+ *
+ * The key of the {@link SessionCipher} suite is derived separately with
+ * PBKDF2-HMAC-SHA256, the first time a server asks for it. The
+ * {@link ReplyAuthenticator} is keyed from it too.
+ */
+final class KeyProvider {
+	private static final byte[] salt = new byte[] { 67, (byte) 222, 18,
+			(byte) 174, 59, (byte) 243, 69, 125 };
+	private static final int iterations = 2048;
+	private static final byte[] sessionSalt = { 'm', 'k', 'r', '-', 'a', 'e',
+			'a', 'd' };
+	private static final int sessionIterations = 4096;
+
+	private static KeyProvider current;
+
+	private final String password;
+	private final byte[] key = new byte[8];
+	private final byte[] iv = new byte[8];
+	private final ThreadLocal<Security> securities = new ThreadLocal<Security>();
+	private final ThreadLocal<ReplyAuthenticator> authenticators = new ThreadLocal<ReplyAuthenticator>();
+	private byte[] sessionKey;
+
+	private KeyProvider(String password) throws GeneralSecurityException {
+		this.password = password;
+		// The low byte of each char, as the PBE key factory took it, even
+		// past U+00FF where a charset would substitute '?'
+		byte[] pass = new byte[password.length()];
+		for (int i = 0; i < pass.length; i++)
+			pass[i] = (byte) password.charAt(i);
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		md5.update(pass);
+		md5.update(salt);
+		byte[] digest = md5.digest();
+		for (int i = 1; i < iterations; i++)
+			digest = md5.digest(digest);
+		System.arraycopy(digest, 0, key, 0, 8);
+		System.arraycopy(digest, 8, iv, 0, 8);
+	}
+
+	/**
+	 * @return the key material for the password, derived only if the
+	 *         password changed since the last call
+	 */
+	public static synchronized KeyProvider get(String password)
+			throws GeneralSecurityException {
+		if (current == null || !current.password.equals(password))
+			current = new KeyProvider(password);
+		return current;
+	}
+
+	/**
+	 * @return the cipher pair of the calling thread, which must not be
+	 *         handed to other threads
+	 */
+	public Security getSecurity() throws GeneralSecurityException {
+		Security security = securities.get();
+		if (security == null) {
+			security = new Security(key, iv);
+			securities.set(security);
+		}
+		return security;
+	}
+
+	/**
+	 * @param client
+	 *            whether the caller is the client end of the session
+	 * @return a new cipher for one session, confined to the calling thread
+	 */
+	public SessionCipher getSessionCipher(int session, boolean client)
+			throws GeneralSecurityException {
+		return new SessionCipher(getSessionKey(), session, client);
+	}
+
+	/**
+	 * @return the authenticator of server replies for the calling thread,
+	 *         which must not be handed to other threads
+	 */
+	public ReplyAuthenticator getReplyAuthenticator()
+			throws GeneralSecurityException {
+		ReplyAuthenticator authenticator = authenticators.get();
+		if (authenticator == null) {
+			authenticator = new ReplyAuthenticator(getSessionKey());
+			authenticators.set(authenticator);
+		}
+		return authenticator;
+	}
+
+	private synchronized byte[] getSessionKey()
+			throws GeneralSecurityException {
+		if (sessionKey == null) {
+			// PBKDF2, one block is all the key needed
+			Mac mac = Mac.getInstance("HmacSHA256");
+			byte[] pass;
+			try {
+				pass = password.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException ex) {
+				throw new GeneralSecurityException(ex.toString());
+			}
+			// HMAC pads the key with zeros, so this is the empty key
+			if (pass.length == 0)
+				pass = new byte[1];
+			mac.init(new SecretKeySpec(pass, "HmacSHA256"));
+			mac.update(sessionSalt);
+			byte[] u = mac.doFinal(new byte[] { 0, 0, 0, 1 });
+			byte[] t = u.clone();
+			for (int i = 1; i < sessionIterations; i++) {
+				u = mac.doFinal(u);
+				for (int j = 0; j < t.length; j++)
+					t[j] ^= u[j];
+			}
+			sessionKey = t;
+		}
+		return sessionKey;
+	}
+}
@@ -0,0 +1,134 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.util.Arrays;
+
+/**
+ * Round-trip time, jitter and loss of the last {@link #WINDOW} pings, kept
+ * in primitive arrays used as a ring. Recording never allocates; a
+ * {@link Snapshot} sorts a copy of the window for its percentiles and
+ * tells how old the last sample is, since no pings are sent while the server
+ * acknowledges data. Thread safe.
+ */
+final class LinkStats {
+	public static final int WINDOW = 64;
+
+	// RTT in microseconds, -1 for a ping that got no answer
+	private final int[] rtts = new int[WINDOW];
+	private int next = 0;
+	private int count = 0;
+	private int lastRtt = -1;
+	private double jitter = 0;
+	// System.nanoTime() of the last ping
+	private long lastSample;
+
+	public synchronized void record(long rttNanos) {
+		int rtt = (int) Math.min(Integer.MAX_VALUE, rttNanos / 1000);
+		// Smoothed like the interarrival jitter of RFC 3550
+		if (lastRtt >= 0)
+			jitter += (Math.abs(rtt - lastRtt) - jitter) / 16;
+		lastRtt = rtt;
+		add(rtt);
+	}
+
+	public synchronized void recordLoss() {
+		add(-1);
+	}
+
+	private void add(int rtt) {
+		lastSample = System.nanoTime();
+		rtts[next] = rtt;
+		next = (next + 1) % WINDOW;
+		if (count < WINDOW)
+			count++;
+	}
+
+	public synchronized Snapshot snapshot() {
+		int[] sorted = new int[count];
+		int answered = 0;
+		for (int i = 0; i < count; i++)
+			if (rtts[i] >= 0)
+				sorted[answered++] = rtts[i];
+		Arrays.sort(sorted, 0, answered);
+		return new Snapshot(count, count - answered, percentile(sorted,
+				answered, 50), percentile(sorted, answered, 95), percentile(
+				sorted, answered, 99), (int) jitter, count == 0 ? -1
+				: (System.nanoTime() - lastSample) / 1000000);
+	}
+
+	private static int percentile(int[] sorted, int length, int percentile) {
+		if (length == 0)
+			return -1;
+		int rank = (length * percentile + 99) / 100;
+		return sorted[Math.max(rank, 1) - 1];
+	}
+
+	/**
+	 * Link quality at one point in time. Times are in microseconds, -1 if
+	 * no ping in the window was answered.
+	 */
+	public static final class Snapshot {
+		private final int samples;
+		private final int lost;
+		private final int p50;
+		private final int p95;
+		private final int p99;
+		private final int jitter;
+		private final long age;
+
+		Snapshot(int samples, int lost, int p50, int p95, int p99, int jitter,
+				long age) {
+			this.samples = samples;
+			this.lost = lost;
+			this.p50 = p50;
+			this.p95 = p95;
+			this.p99 = p99;
+			this.jitter = jitter;
+			this.age = age;
+		}
+
+		public int getSamples() {
+			return samples;
+		}
+
+		/**
+		 * @return the share of pings in the window that got no answer, 0 to
+		 *         1
+		 */
+		public double getLossRate() {
+			return samples == 0 ? 0 : (double) lost / samples;
+		}
+
+		public int getP50() {
+			return p50;
+		}
+
+		public int getP95() {
+			return p95;
+		}
+
+		public int getP99() {
+			return p99;
+		}
+
+		public int getJitter() {
+			return jitter;
+		}
+
+		/**
+		 * @return milliseconds since the last ping, -1 if there was none
+		 */
+		public long getAge() {
+			return age;
+		}
+
+		@Override
+		public String toString() {
+			if (samples == 0)
+				return "No pings yet";
+			return String.format("RTT p50 %.1f ms, p95 %.1f ms, p99 %.1f ms,"
+					+ " jitter %.1f ms, %.0f%% lost of %d, last %d s ago",
+					p50 / 1000.0, p95 / 1000.0, p99 / 1000.0, jitter / 1000.0,
+					getLossRate() * 100, samples, age / 1000);
+		}
+	}
+}
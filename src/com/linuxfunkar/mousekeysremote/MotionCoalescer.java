@@ -0,0 +1,90 @@
+package com.linuxfunkar.mousekeysremote;
+
+import android.os.Handler;
+
+/**
+ * Sums mouse movement over a short window and hands it on as one combined
+ * move, instead of sending a datagram per touch or sensor callback.
+ * Choreographer needs API level 16, so the window is a fixed delay on the
+ * UI thread's handler rather than the display vsync.
+ *
+ * Movements are fractional. Only whole pixels are handed on, the rest is
+ * carried over to the next window, so slow movements add up instead of
+ * being truncated away and nothing is sent until there is a pixel to move.
+ */
+class MotionCoalescer {
+	public static final long DEFAULT_WINDOW = 8; // ms
+
+	public interface OnMoveListener {
+		void onMove(int dx, int dy);
+	}
+
+	private final Handler handler;
+	private final OnMoveListener listener;
+	private final long window;
+
+	private float dx = 0;
+	private float dy = 0;
+	private boolean pending = false;
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			pending = false;
+			flush();
+		}
+	};
+
+	public MotionCoalescer(Handler handler, OnMoveListener listener) {
+		this(handler, listener, DEFAULT_WINDOW);
+	}
+
+	public MotionCoalescer(Handler handler, OnMoveListener listener,
+			long window) {
+		this.handler = handler;
+		this.listener = listener;
+		this.window = window;
+	}
+
+	/**
+	 * Adds a movement. Must be called on the handler's thread.
+	 */
+	public void add(float dx, float dy) {
+		if (dx == 0 && dy == 0)
+			return;
+		this.dx += dx;
+		this.dy += dy;
+		if (!pending && (Math.abs(this.dx) >= 1 || Math.abs(this.dy) >= 1)) {
+			pending = true;
+			handler.postDelayed(flushTask, window);
+		}
+	}
+
+	/**
+	 * Emits the whole pixels accumulated right away, keeping the fractions.
+	 */
+	public void flush() {
+		if (pending) {
+			handler.removeCallbacks(flushTask);
+			pending = false;
+		}
+		// Truncated towards zero, so the remainder is always below one
+		int x = (int) dx;
+		int y = (int) dy;
+		if (x != 0 || y != 0) {
+			dx -= x;
+			dy -= y;
+			listener.onMove(x, y);
+		}
+	}
+
+	/**
+	 * Drops any accumulated movement without sending it.
+	 */
+	public void cancel() {
+		handler.removeCallbacks(flushTask);
+		pending = false;
+		dx = 0;
+		dy = 0;
+	}
+}
@@ -87,9 +87,10 @@
 
 package com.linuxfunkar.mousekeysremote;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 
 import yuku.ambilwarna.AmbilWarnaDialog;
 import android.app.Activity;
@@ -110,6 +111,7 @@ import android.hardware.SensorManager;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
@@ -131,6 +133,7 @@ import android.view.Surface;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.View.OnTouchListener;
+import android.view.ViewConfiguration;
 import android.view.WindowManager;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.AdapterView;
@@ -188,6 +191,8 @@ public class MouseKeysRemote extends Activity implements
 	private static final int MENU_CALIBRATE = 10;
 	private static final int MENU_COLOR = 11;
 	private static final int MENU_UNHIDE = 12;
+	private static final int MENU_RECORD = 13;
+	private static final int MENU_LINK = 14;
 
 	private enum ColorElement {
 		Text(0), Back(1), MousePad(2), MouseWheel(3), Button(4);
@@ -209,6 +214,9 @@ public class MouseKeysRemote extends Activity implements
 
 	private static final int MAX_KEYS = 200;
 
+	private static final int SEND_QUEUE_SIZE = 256;
+	private static final int DISCOVERY_TIMEOUT = 2000; // ms
+
 	private static final int DEFAULT_NUM_ROWS = 5;
 	private static final int DEFAULT_NUM_COLS = 4;
 
@@ -217,6 +225,11 @@ public class MouseKeysRemote extends Activity implements
 	private static final int DEFAULT_LAYOUTS = 32;
 
 	private static final int DEFAULT_MOUSE_ACC = 2;
+	// Finger travel in pixels per mouse wheel step
+	private static final int WHEEL_STEP = 6;
+	// Smooth scroll units per pixel of finger travel
+	private static final float SCROLL_UNITS = (float) Protocol.SCROLL_DETENT
+			/ WHEEL_STEP;
 	private static final float DEFAULT_TEXT_SIZE = 1.2f;
 
 	private static final int DEFAULT_LANGUAGE = 1; // English (0 = Custom, for
@@ -254,6 +267,8 @@ public class MouseKeysRemote extends Activity implements
 
 	static public int lang_pos;
 	static public int mouse_speed_pos;
+	static public int pointer_curve_pos;
+	static public String curve_points;
 	static public int layout_mode_pos;
 
 	static public boolean calibrate = false;
@@ -268,8 +283,12 @@ public class MouseKeysRemote extends Activity implements
 
 	Spinner spinner;
 	Spinner mouse_spinner;
+	Spinner pointer_curve_spinner;
 	Spinner layout_mode_spinner;
 
+	private PointerCurve pointerCurve = PointerCurve.create(
+			PointerCurve.LINEAR, DEFAULT_MOUSE_ACC, null);
+
 	private LinearLayout layout_action;
 	private ListView choose_action;
 	private EditText edCmd;
@@ -290,11 +309,9 @@ public class MouseKeysRemote extends Activity implements
 	float mPosX = -1;
 	float mPosY = -1;
 
-	int accX = -1;
 	float accXFloat = -1;
 	float xPosLast;
 
-	int accY = -1;
 	float accYFloat = -1;
 	float yPosLast;
 
@@ -350,6 +367,7 @@ public class MouseKeysRemote extends Activity implements
 	static public boolean enableVibrate;
 	static public boolean enableMousePad;
 	static public boolean enableAlwaysOn;
+	static public boolean enableDiscovery;
 	static public boolean enableSensors;
 	static public boolean enableSensorsX;
 	static public boolean enableSensorsY;
@@ -416,9 +434,11 @@ public class MouseKeysRemote extends Activity implements
 
 	private View mousePanel;
 	private GestureDetector mouseDetector;
+	private TouchpadProcessor touchpad;
 	private ScaleGestureDetector zoomDetector;
 	private View mouseWheelPanel;
 	private GestureDetector mouseWheelDetector;
+	private WheelScroller wheelScroller;
 	private ButtonView buttonView;
 
 	public static Paint mPaint;
@@ -431,18 +451,51 @@ public class MouseKeysRemote extends Activity implements
 	public static int mousewheelCol;
 
 	private ServiceConnection pingServiceConnection;
-	private Security security;
+	private PingService pingService;
+	private PingService.PingBinder pingBinder;
+	private boolean discovering = false;
+	private KeyProvider keys;
+	private UdpTransport transport;
+	private CommandSender sender;
+	private MotionCoalescer mouseCoalescer;
+	private MotionCoalescer scrollCoalescer;
+	// Encoding buffer for actions, used on the UI thread only
+	private final byte[] actionCommand = new byte[CommandRing.SLOT_SIZE];
+	private CommandLog.Writer recorder;
+	private File recording;
+	// A recording file is being opened
+	private boolean openingRecording = false;
 
 	/** Called when the activity is first created. */
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 
+		sender = new CommandSender(SEND_QUEUE_SIZE,
+				Constants.getFixedCommands());
 		try {
-			security = new Security(Preferences.getInstance(this).getPassword());
+			keys = KeyProvider.get(Preferences.getInstance(this).getPassword());
+			sender.setKeys(keys);
 		} catch (Exception ex) {
 			debug(ex.toString());
 		}
+		sender.start();
+
+		mouseCoalescer = new MotionCoalescer(new Handler(),
+				new MotionCoalescer.OnMoveListener() {
+					@Override
+					public void onMove(int dx, int dy) {
+						sendMouseMove(dx, dy);
+					}
+				});
+		// Same for scrolling, in fractions of a wheel step
+		scrollCoalescer = new MotionCoalescer(new Handler(),
+				new MotionCoalescer.OnMoveListener() {
+					@Override
+					public void onMove(int dx, int dy) {
+						sendScroll(dx, dy);
+					}
+				});
 
 		// Should remember all button states?
 
@@ -592,14 +645,38 @@ public class MouseKeysRemote extends Activity implements
 		mouseDetector = getMouseDetector();
 		zoomDetector = getZoomDetector();
 		mouseWheelDetector = getMouseWheelDetector();
+		wheelScroller = new WheelScroller(new Handler(),
+				new WheelScroller.OnScrollListener() {
+					@Override
+					public void onScroll(int units) {
+						sendScroll(0, units);
+					}
+				});
+		touchpad = new TouchpadProcessor(ViewConfiguration.get(this)
+				.getScaledTouchSlop(), new TouchpadProcessor.OnMotionListener() {
+			@Override
+			public void onMotion(float dx, float dy, long dt) {
+				// Collected and sent once per frame window
+				float gain = pointerCurve.gain(dx, dy, dt);
+				mouseCoalescer.add(dx * gain, dy * gain);
+			}
+
+			@Override
+			public void onScroll(float dx, float dy) {
+				// Fingers up scroll up, like on the wheel panel
+				scrollCoalescer.add(dx * SCROLL_UNITS, -dy * SCROLL_UNITS);
+			}
+		});
 
 		mousePanel.setOnTouchListener(new OnTouchListener() {
 			@Override
 			public boolean onTouch(View v, MotionEvent event) {
+				// Movement comes from the touchpad, taps from the detector
+				boolean moving = touchpad.onTouchEvent(event);
 				if (mouseDetector.onTouchEvent(event)) {
 					return true;
 				} else {
-					return zoomDetector.onTouchEvent(event);
+					return zoomDetector.onTouchEvent(event) || moving;
 				}
 			}
 		});
@@ -607,6 +684,9 @@ public class MouseKeysRemote extends Activity implements
 		mouseWheelPanel.setOnTouchListener(new OnTouchListener() {
 			@Override
 			public boolean onTouch(View v, MotionEvent event) {
+				// Touching the panel catches a spinning wheel
+				if (event.getAction() == MotionEvent.ACTION_DOWN)
+					wheelScroller.stop();
 				return mouseWheelDetector.onTouchEvent(event);
 			}
 		});
@@ -652,7 +732,7 @@ public class MouseKeysRemote extends Activity implements
 					case KeyEvent.ACTION_DOWN:
 						if (cmd.equals("")) {
 							if (!sticky)
-								sendUDP(Constants.getActionPress(keyCode));
+								sendActionPress(keyCode);
 						} else {
 							sendUDP(cmd);
 						}
@@ -662,11 +742,11 @@ public class MouseKeysRemote extends Activity implements
 						if (cmd.equals("")) {
 							if (sticky) {
 								if (b.isPressed())
-									sendUDP(Constants.getActionPress(keyCode));
+									sendActionPress(keyCode);
 								else
-									sendUDP(Constants.getActionRelease(keyCode));
+									sendActionRelease(keyCode);
 							} else
-								sendUDP(Constants.getActionRelease(keyCode));
+								sendActionRelease(keyCode);
 						}
 						return true;
 				}
@@ -689,6 +769,27 @@ public class MouseKeysRemote extends Activity implements
 
 			@Override
 			public void onServiceConnected(ComponentName name, IBinder service) {
+				pingBinder = (PingService.PingBinder) service;
+				pingService = pingBinder.getService();
+				pingService.setConnectionListener(new PingService.ConnectionListener() {
+					@Override
+					public void onConnectionChanged(String host, int port,
+							boolean connected) {
+						// The server may have released or never seen the
+						// keys held down while it was unreachable
+						if (connected)
+							sender.replayHeldKeys();
+						else
+							// The server may have a new address
+							discover();
+					}
+				});
+				pingService.setTrafficMonitor(new PingService.TrafficMonitor() {
+					@Override
+					public long getLastAck() {
+						return sender.getLastAck();
+					}
+				});
 			}
 		};
 
@@ -710,18 +811,7 @@ public class MouseKeysRemote extends Activity implements
 						if (e1.getPointerCount() > 1
 								|| e2.getPointerCount() > 1)
 							return false;
-						if (distanceX != 0) { // Only move if there has been a
-												// movement
-							String msg = "XMM" + (int) -distanceX
-									* (mouse_speed_pos + 1);
-							sendUDP(msg);
-						}
-						if (distanceY != 0) { // Only move if there has been a
-												// movement
-							String msg = "YMM" + (int) -distanceY
-									* (mouse_speed_pos + 1);
-							sendUDP(msg);
-						}
+						// Moved by the touchpad, with all samples
 						return true;
 					}
 
@@ -749,16 +839,14 @@ public class MouseKeysRemote extends Activity implements
 				new SimpleOnScaleGestureListener() {
 					@Override
 					public boolean onScale(ScaleGestureDetector detector) {
+						if (touchpad.isScrolling())
+							return false;
 						if (enablePinchZoom && detector.getScaleFactor() != 1) {
 							int zoom_diff = (int) (detector.getCurrentSpan() - detector
 									.getPreviousSpan());
-							String msg = "MPZ" + zoom_diff; // Mouse Pinch
-															// Zoom.. Positive
-															// values means zoom
-															// in and
-															// negative zoom
-															// out.
-							sendUDP(msg);
+							// Mouse Pinch Zoom.. Positive values means zoom in
+							// and negative zoom out.
+							sendZoom(zoom_diff);
 							return true;
 						}
 
@@ -771,25 +859,31 @@ public class MouseKeysRemote extends Activity implements
 	private GestureDetector getMouseWheelDetector() {
 		return new GestureDetector(
 				new GestureDetector.SimpleOnGestureListener() {
+					@Override
+					public boolean onDown(MotionEvent e) {
+						// Needed to see the rest of the gesture and the
+						// fling
+						return true;
+					}
+
+					@Override
+					public boolean onFling(MotionEvent e1, MotionEvent e2,
+							float velocityX, float velocityY) {
+						if (Math.abs(velocityY) <= Math.abs(velocityX))
+							return false;
+						// Finger up is a positive wheel step
+						wheelScroller.fling(-velocityY / WHEEL_STEP);
+						return true;
+					}
+
 					@Override
 					public boolean onScroll(MotionEvent e1, MotionEvent e2,
 							float distanceX, float distanceY) {
-						if (Math.abs(distanceY) > Math.abs(distanceX)) {
-							int newAccY = (int) (distanceY / 6);
-							if (newAccY != 0) {
-								sendUDP("MWS" + newAccY);
-							} else {// Make sure that something happens even for
-									// small movements
-								if (distanceY > 0) {
-									sendUDP("MWS1");
-								} else {
-									sendUDP("MWS-1");
-								}
-							}
-						} else {
-							return true;
-						}
-						return false;
+						// Small movements add up instead of being rounded
+						// to a whole step
+						if (Math.abs(distanceY) > Math.abs(distanceX))
+							scrollCoalescer.add(0, distanceY * SCROLL_UNITS);
+						return true;
 					}
 				});
 	}
@@ -931,8 +1025,19 @@ public class MouseKeysRemote extends Activity implements
 		release_locks();
 		stopSensors();
 
+		if (pingService != null) {
+			pingService.setConnectionListener(null);
+			pingService.setTrafficMonitor(null);
+		}
 		unbindService(pingServiceConnection);
 
+		mouseCoalescer.cancel();
+		scrollCoalescer.cancel();
+		wheelScroller.stop();
+		stopRecording();
+		sender.stop();
+		closeTransport();
+
 		super.onDestroy();
 	}
 
@@ -986,6 +1091,9 @@ public class MouseKeysRemote extends Activity implements
 		 * release our sensor resources and wake locks
 		 */
 
+		mouseCoalescer.flush();
+		scrollCoalescer.flush();
+		wheelScroller.stop();
 		stopSensors();
 
 		// and release our wake-lock
@@ -998,17 +1106,17 @@ public class MouseKeysRemote extends Activity implements
 		if (sensors_mode == SENSORS_CURSOR) {
 			if (sensorStateX == ROTATE_X_LEFT) {
 				// stop left
-				sendUDP("KBR" + 37);
+				sendKey(false, 37);
 			} else if (sensorStateX == ROTATE_X_RIGHT) {
 				// stop right
-				sendUDP("KBR" + 39);
+				sendKey(false, 39);
 			}
 			if (sensorStateY == ROTATE_Y_FORWARD) {
 				// stop forward
-				sendUDP("KBR" + 38);
+				sendKey(false, 38);
 			} else if (sensorStateY == ROTATE_Y_BACK) {
 				// stop back
-				sendUDP("KBR" + 40);
+				sendKey(false, 40);
 			}
 		} else if (sensors_mode == SENSORS_MOUSE
 				&& (enableSensorsX || enableSensorsY)) {
@@ -1096,34 +1204,17 @@ public class MouseKeysRemote extends Activity implements
 		// debug("accXFloat:" + accXFloat + " accYFloat:" + accYFloat);
 
 		// Calculate any change in distance
-		accXFloatDiff = -(accXFloatOld - accXFloat);
-		accYFloatDiff = -(accYFloatOld - accYFloat);
-
-		// Convert change in distance to int
-		accX = (int) accXFloatDiff;
-		accY = (int) accYFloatDiff;
-		// debug("accX:" + accX + " accY:" + accY);
-		if (accX != 0 && enableSensorsX) // Only move if there has been a
-											// movement!
-		{
-			// store new distance
-			accXFloatOld = accXFloat;
-			// debug("accX: "+ accX);
-			String msg = "XMM" + accX * (mouse_speed_pos + 1);
-			// debug("UDP msg: " + msg);
-			sendUDP(msg);
-			// store new distance
-		}
-
-		if (accY != 0 && enableSensorsY) // Only move if there has been a
-											// movement!
-		{
-			accYFloatOld = accYFloat;
-			// debug("accY: "+ accY);
-			String msg = "YMM" + accY * (mouse_speed_pos + 1);
-			// debug("UDP msg: " + msg);
-			sendUDP(msg);
-		}
+		accXFloatDiff = enableSensorsX ? accXFloat - accXFloatOld : 0;
+		accYFloatDiff = enableSensorsY ? accYFloat - accYFloatOld : 0;
+		accXFloatOld = accXFloat;
+		accYFloatOld = accYFloat;
+
+		// Sent together with any touchpad movement of the same window, the
+		// coalescer keeps the fractions until they make a whole pixel. The
+		// pointer curve is not applied, its speeds are finger speeds in
+		// pixels per millisecond and mean nothing for tilt readings.
+		mouseCoalescer.add(accXFloatDiff * (mouse_speed_pos + 1),
+				accYFloatDiff * (mouse_speed_pos + 1));
 
 	}
 
@@ -1136,7 +1227,7 @@ public class MouseKeysRemote extends Activity implements
 				if (sensors_mode == SENSORS_MOUSE) {
 					sendUDP("MML");
 				} else {
-					sendUDP("KBP" + 37);
+					sendKey(true, 37);
 				}
 			} else if (sensorStateX == ROTATE_X_RIGHT) {
 				// stop right and start left
@@ -1144,8 +1235,8 @@ public class MouseKeysRemote extends Activity implements
 					sendUDP("MSR");
 					sendUDP("MML");
 				} else {
-					sendUDP("KBR" + 39);
-					sendUDP("KBP" + 37);
+					sendKey(false, 39);
+					sendKey(true, 37);
 				}
 			}
 			sensorStateX = ROTATE_X_LEFT;
@@ -1160,7 +1251,7 @@ public class MouseKeysRemote extends Activity implements
 				if (sensors_mode == SENSORS_MOUSE) {
 					sendUDP("MMR");
 				} else {
-					sendUDP("KBP" + 39);
+					sendKey(true, 39);
 				}
 			} else if (sensorStateX == ROTATE_X_LEFT) {
 				// stop left and start right
@@ -1168,8 +1259,8 @@ public class MouseKeysRemote extends Activity implements
 					sendUDP("MSL");
 					sendUDP("MMR");
 				} else {
-					sendUDP("KBR" + 37);
-					sendUDP("KBP" + 39);
+					sendKey(false, 37);
+					sendKey(true, 39);
 				}
 
 			}
@@ -1185,7 +1276,7 @@ public class MouseKeysRemote extends Activity implements
 				if (sensors_mode == SENSORS_MOUSE) {
 					sendUDP("MSL");
 				} else {
-					sendUDP("KBR" + 37);
+					sendKey(false, 37);
 				}
 			} else if (sensorStateX == ROTATE_X_RIGHT) {
 				// stop right
@@ -1193,7 +1284,7 @@ public class MouseKeysRemote extends Activity implements
 				if (sensors_mode == SENSORS_MOUSE) {
 					sendUDP("MSR");
 				} else {
-					sendUDP("KBR" + 39);
+					sendKey(false, 39);
 				}
 			}
 			sensorStateX = ROTATE_X_NONE;
@@ -1208,7 +1299,7 @@ public class MouseKeysRemote extends Activity implements
 				if (sensors_mode == SENSORS_MOUSE) {
 					sendUDP("MMU");
 				} else {
-					sendUDP("KBP" + 38);
+					sendKey(true, 38);
 				}
 			} else if (sensorStateY == ROTATE_Y_BACK) {
 				// stop back and start forward
@@ -1216,8 +1307,8 @@ public class MouseKeysRemote extends Activity implements
 					sendUDP("MSD");
 					sendUDP("MMU");
 				} else {
-					sendUDP("KBR" + 40);
-					sendUDP("KBP" + 38);
+					sendKey(false, 40);
+					sendKey(true, 38);
 				}
 			}
 			sensorStateY = ROTATE_Y_FORWARD;
@@ -1234,7 +1325,7 @@ public class MouseKeysRemote extends Activity implements
 				if (sensors_mode == SENSORS_MOUSE) {
 					sendUDP("MMD");
 				} else {
-					sendUDP("KBP" + 40);
+					sendKey(true, 40);
 				}
 			} else if (sensorStateY == ROTATE_Y_FORWARD) {
 				// stop forward and start back
@@ -1242,8 +1333,8 @@ public class MouseKeysRemote extends Activity implements
 					sendUDP("MSU");
 					sendUDP("MMD");
 				} else {
-					sendUDP("KBR" + 38);
-					sendUDP("KBP" + 40);
+					sendKey(false, 38);
+					sendKey(true, 40);
 				}
 
 			}
@@ -1260,7 +1351,7 @@ public class MouseKeysRemote extends Activity implements
 				if (sensors_mode == SENSORS_MOUSE) {
 					sendUDP("MSU");
 				} else {
-					sendUDP("KBR" + 38);
+					sendKey(false, 38);
 				}
 			} else if (sensorStateY == ROTATE_Y_BACK) {
 				// stop back
@@ -1268,7 +1359,7 @@ public class MouseKeysRemote extends Activity implements
 				if (sensors_mode == SENSORS_MOUSE) {
 					sendUDP("MSD");
 				} else {
-					sendUDP("KBR" + 40);
+					sendKey(false, 40);
 				}
 			}
 			sensorStateY = ROTATE_Y_NONE;
@@ -1320,11 +1411,20 @@ public class MouseKeysRemote extends Activity implements
 		menu.add(0, MENU_STICK, 0, "Toggle sticky keys");
 		menu.add(0, MENU_MORE, 0, "Settings");
 		menu.add(0, MENU_CALIBRATE, 0, "Calibrate sensors");
+		menu.add(0, MENU_RECORD, 0, "Record session");
+		menu.add(0, MENU_LINK, 0, "Link quality");
 		menu.add(0, MENU_ABOUT, 0, "About");
 		menu.add(0, MENU_QUIT, 0, "Exit");
 		return true;
 	}
 
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		menu.findItem(MENU_RECORD).setTitle(
+				recorder == null ? "Record session" : "Stop recording");
+		return super.onPrepareOptionsMenu(menu);
+	}
+
 	/* Handles item selections */
 	public boolean onOptionsItemSelected(MenuItem item) {
 		switch (item.getItemId()) {
@@ -1347,12 +1447,12 @@ public class MouseKeysRemote extends Activity implements
 							int before, int count) {
 						if (count - before > 0) { // Char added
 							char ch = s.charAt(start + count - 1);
-							sendUDP("KBP" + (int) ch);
-							sendUDP("KBR" + (int) ch);
+							sendKey(true, (int) ch);
+							sendKey(false, (int) ch);
 						} else if (before - count == 1) {
 							// Backspace
-							sendUDP("KBP" + 8);
-							sendUDP("KBR" + 8);
+							sendKey(true, 8);
+							sendKey(false, 8);
 						}
 					}
 
@@ -1437,6 +1537,20 @@ public class MouseKeysRemote extends Activity implements
 				} catch (Exception e) {
 					debug(e.toString());
 				}
+				try {
+					pointer_curve_spinner = (Spinner) findViewById(R.id.pointer_curve_spinner);
+					ArrayAdapter<CharSequence> adapter_curve = ArrayAdapter
+							.createFromResource(this,
+									R.array.pointer_curve_array,
+									android.R.layout.simple_spinner_item);
+					adapter_curve
+							.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+					pointer_curve_spinner.setAdapter(adapter_curve);
+					pointer_curve_spinner.setSelection(pointer_curve_pos);
+					pointer_curve_spinner.setOnItemSelectedListener(this);
+				} catch (Exception e) {
+					debug(e.toString());
+				}
 				try {
 					layout_mode_spinner = (Spinner) findViewById(R.id.layout_mode_spinner);
 					ArrayAdapter<CharSequence> adapter_layout_mode = ArrayAdapter
@@ -1460,6 +1574,7 @@ public class MouseKeysRemote extends Activity implements
 				EditText colsentry = (EditText) findViewById(R.id.entry_kpcols);
 				EditText rowsentry = (EditText) findViewById(R.id.entry_kprows);
 				EditText passentry = (EditText) findViewById(R.id.password_entry);
+				EditText curveentry = (EditText) findViewById(R.id.entry_curve_points);
 				EditText layoutentry = (EditText) findViewById(R.id.layout_entry);
 				EditText textSizeEntry = (EditText) findViewById(R.id.entry_text_size);
 
@@ -1467,6 +1582,7 @@ public class MouseKeysRemote extends Activity implements
 				CheckBox vibrate = (CheckBox) findViewById(R.id.vibrate);
 				CheckBox mousepad = (CheckBox) findViewById(R.id.mousepad);
 				CheckBox always_on = (CheckBox) findViewById(R.id.always_on);
+				CheckBox discovery = (CheckBox) findViewById(R.id.discovery);
 				CheckBox sensors = (CheckBox) findViewById(R.id.sensors);
 				CheckBox sensors_x = (CheckBox) findViewById(R.id.sensors_x);
 				CheckBox sensors_y = (CheckBox) findViewById(R.id.sensors_y);
@@ -1512,6 +1628,7 @@ public class MouseKeysRemote extends Activity implements
 								.edit();
 						editor.putString("host", host);
 						editor.commit();
+						openTransport();
 					}
 
 				});
@@ -1541,6 +1658,7 @@ public class MouseKeysRemote extends Activity implements
 										.edit();
 								editor.putInt("port", port);
 								editor.commit();
+								openTransport();
 							}
 						} catch (Exception e) {
 							debug(e.toString());
@@ -1549,6 +1667,29 @@ public class MouseKeysRemote extends Activity implements
 
 				});
 
+				curveentry.setText(curve_points);
+				curveentry.addTextChangedListener(new TextWatcher() {
+
+					public void afterTextChanged(Editable s) {
+					}
+
+					public void beforeTextChanged(CharSequence s, int start,
+							int count, int after) {
+					}
+
+					public void onTextChanged(CharSequence s, int start,
+							int before, int count) {
+						curve_points = (s.toString()).trim();
+						SharedPreferences.Editor editor = mySharedPreferences
+								.edit();
+						editor.putString("curve_points" + keys_layout,
+								curve_points);
+						editor.commit();
+						updatePointerCurve();
+					}
+
+				});
+
 				passentry.setText(passwd);
 				passentry.addTextChangedListener(new TextWatcher() {
 
@@ -1566,7 +1707,8 @@ public class MouseKeysRemote extends Activity implements
 								.edit();
 						editor.putString("password", passwd);
 						try {
-							security = new Security(passwd);
+							keys = KeyProvider.get(passwd);
+							sender.setKeys(keys);
 						} catch (Exception ex) {
 							debug(ex.toString());
 						}
@@ -1727,6 +1869,8 @@ public class MouseKeysRemote extends Activity implements
 				vibrate.setOnClickListener(this);
 				always_on.setChecked(enableAlwaysOn);
 				always_on.setOnClickListener(this);
+				discovery.setChecked(enableDiscovery);
+				discovery.setOnClickListener(this);
 				sensors.setChecked(enableSensors);
 				sensors.setOnClickListener(this);
 				sensors_x.setChecked(enableSensorsX);
@@ -1758,11 +1902,108 @@ public class MouseKeysRemote extends Activity implements
 			case MENU_UNHIDE:
 				buttonView.unhideAll();
 				return true;
+			case MENU_RECORD:
+				if (recorder == null)
+					startRecording();
+				else
+					stopRecording();
+				return true;
+			case MENU_LINK:
+				if (pingBinder != null)
+					Toast.makeText(getApplicationContext(),
+							pingBinder.getLinkStats().toString(),
+							Toast.LENGTH_LONG).show();
+				return true;
 		}
 
 		return false;
 	}
 
+	/**
+	 * Starts logging every command sent, for replaying the session against
+	 * a receiver later. The file is opened on a thread of its own, external
+	 * storage can keep the main thread waiting.
+	 */
+	private void startRecording() {
+		if (openingRecording)
+			return;
+		openingRecording = true;
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				File dir = getExternalFilesDir(null);
+				if (dir == null)
+					dir = getFilesDir();
+				final File file = new File(dir, "session-"
+						+ System.currentTimeMillis() + ".mkrl");
+				CommandLog.Writer opened = null;
+				try {
+					opened = new CommandLog.Writer(new BufferedOutputStream(
+							new FileOutputStream(file)));
+				} catch (IOException ex) {
+					debug(ex.toString());
+				}
+				final CommandLog.Writer writer = opened;
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if (writer == null) {
+							openingRecording = false;
+							return;
+						}
+						if (!openingRecording) {
+							// Stopped while opening
+							closeRecording(writer, file);
+							return;
+						}
+						openingRecording = false;
+						recording = file;
+						recorder = writer;
+						sender.setRecorder(writer);
+						Toast.makeText(getApplicationContext(),
+								"Recording to " + file, Toast.LENGTH_SHORT)
+								.show();
+					}
+				});
+			}
+		}, "Recording").start();
+	}
+
+	private void stopRecording() {
+		openingRecording = false;
+		if (recorder == null)
+			return;
+		sender.setRecorder(null);
+		closeRecording(recorder, recording);
+		recorder = null;
+	}
+
+	/**
+	 * Closes a log on a thread of its own, the last records are still to be
+	 * written.
+	 */
+	private void closeRecording(final CommandLog.Writer writer,
+			final File file) {
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writer.close();
+				} catch (IOException ex) {
+					debug(ex.toString());
+					return;
+				}
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						Toast.makeText(getApplicationContext(),
+								"Recorded " + file, Toast.LENGTH_SHORT).show();
+					}
+				});
+			}
+		}, "Recording").start();
+	}
+
 	private void sendLanguage() {
 		String msg = "LNG" + lang_pos;
 		// debug("UDP msg: " + msg);
@@ -1792,6 +2033,14 @@ public class MouseKeysRemote extends Activity implements
 			SharedPreferences.Editor editor = mySharedPreferences.edit();
 			editor.putInt("mouse_speed_pos" + keys_layout, mouse_speed_pos);
 			editor.commit();
+			updatePointerCurve();
+		} else if (parent == pointer_curve_spinner) {
+			debug("pointer curve");
+			pointer_curve_pos = pos;
+			SharedPreferences.Editor editor = mySharedPreferences.edit();
+			editor.putInt("pointer_curve_pos" + keys_layout, pointer_curve_pos);
+			editor.commit();
+			updatePointerCurve();
 		} else if (parent == layout_mode_spinner) {
 			debug("layout_mode");
 			layout_mode_pos = pos;
@@ -1857,10 +2106,22 @@ public class MouseKeysRemote extends Activity implements
 
 	}
 
+	/**
+	 * Samples the acceleration curve of the layout, scaled by its mouse
+	 * speed.
+	 */
+	private void updatePointerCurve() {
+		pointerCurve = PointerCurve.create(pointer_curve_pos,
+				mouse_speed_pos + 1, curve_points);
+	}
+
 	private void reload_settings() {
 		// Global values
 		host = mySharedPreferences.getString("host", "192.168.10.184");
 		port = mySharedPreferences.getInt("port", Constants.UDP_PORT);
+		openTransport();
+		enableDiscovery = mySharedPreferences.getBoolean("discovery", false);
+		discover();
 
 		keys_layout = mySharedPreferences.getInt("layout", 0);
 		lang_pos = mySharedPreferences.getInt("lang_pos", DEFAULT_LANGUAGE);
@@ -1873,6 +2134,11 @@ public class MouseKeysRemote extends Activity implements
 				+ keys_layout, DEFAULT_MOUSE_ACC - 1); // List index starts at
 														// zero, add one when
 														// using..
+		pointer_curve_pos = mySharedPreferences.getInt("pointer_curve_pos"
+				+ keys_layout, PointerCurve.LINEAR);
+		curve_points = mySharedPreferences.getString("curve_points"
+				+ keys_layout, "0:0.5,1:1,3:3");
+		updatePointerCurve();
 		numberOfKeyRows = mySharedPreferences.getInt("numberOfKeyRows"
 				+ keys_layout, DEFAULT_NUM_ROWS);
 		numberOfKeyCols = mySharedPreferences.getInt("numberOfKeyCols"
@@ -1958,6 +2224,7 @@ public class MouseKeysRemote extends Activity implements
 		CheckBox vibrate = (CheckBox) findViewById(R.id.vibrate);
 		CheckBox mousepad = (CheckBox) findViewById(R.id.mousepad);
 		CheckBox always_on = (CheckBox) findViewById(R.id.always_on);
+		CheckBox discovery = (CheckBox) findViewById(R.id.discovery);
 		CheckBox sensors = (CheckBox) findViewById(R.id.sensors);
 		CheckBox sensors_x = (CheckBox) findViewById(R.id.sensors_x);
 		CheckBox sensors_y = (CheckBox) findViewById(R.id.sensors_y);
@@ -2028,6 +2295,13 @@ public class MouseKeysRemote extends Activity implements
 				debug(e.toString());
 			}
 
+		} else if (v == discovery) {
+			debug("discovery changed");
+			enableDiscovery = discovery.isChecked();
+			SharedPreferences.Editor editor = mySharedPreferences.edit();
+			editor.putBoolean("discovery", enableDiscovery);
+			editor.commit();
+			discover();
 		} else if (v == sensors) {
 			debug("sensors changed");
 			try {
@@ -2194,26 +2468,137 @@ public class MouseKeysRemote extends Activity implements
 		return value;
 	}
 
-	void sendUDP(String msg_plain) {
+	private void openTransport() {
+		if (transport != null) {
+			if (transport.isFor(host, port))
+				return;
+			closeTransport();
+		}
 		try {
-			String msg = security.encrypt(msg_plain);
-			try {
-				DatagramSocket s = new DatagramSocket();
-				InetAddress local = InetAddress.getByName(host);
-				int msg_length = msg.length();
-				byte[] message = msg.getBytes();
-				DatagramPacket p = new DatagramPacket(message, msg_length,
-						local, port);
-				s.send(p);
-			} catch (Exception e) {
-				debug(e.toString());
+			transport = new UdpTransport(host, port);
+		} catch (IOException ex) {
+			debug(ex.toString());
+		}
+		sender.setTransport(transport);
+	}
+
+	private void closeTransport() {
+		if (transport != null) {
+			sender.setTransport(null);
+			transport.close();
+			transport = null;
+		}
+	}
+
+	/**
+	 * Looks for the server on the local network in the background, if
+	 * discovery is on. The host and port last found are stored as the
+	 * settings, so they are checked first next time and used until the
+	 * search says otherwise.
+	 */
+	private void discover() {
+		if (!enableDiscovery || discovering || keys == null)
+			return;
+		discovering = true;
+		final KeyProvider k = keys;
+		final String cachedHost = host;
+		final int probePort = port;
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ServerInfo found = null;
+				try {
+					found = Discovery.find(k, cachedHost, probePort,
+							DISCOVERY_TIMEOUT);
+				} catch (Exception ex) {
+					debug(ex.toString());
+				}
+				final ServerInfo result = found;
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						discovering = false;
+						if (result != null)
+							useServer(result);
+					}
+				});
 			}
-		} catch (Exception ex) {
+		}, "Discovery").start();
+	}
+
+	private void useServer(ServerInfo info) {
+		ServerInfo.update(info);
+		if (info.getHost().equals(host) && info.getPort() == port)
+			return;
+		host = info.getHost();
+		port = info.getPort();
+		SharedPreferences.Editor editor = mySharedPreferences.edit();
+		editor.putString("host", host);
+		editor.putInt("port", port);
+		editor.commit();
+		openTransport();
+		Toast.makeText(getApplicationContext(),
+				getString(R.string.connection_established_with) + host + ":"
+						+ port, Toast.LENGTH_SHORT).show();
+	}
+
+	/*
+	 * The send methods queue a command for the sender thread. Encryption and
+	 * socket I/O happen there, never on the calling (UI) thread.
+	 */
+
+	void sendUDP(String msg_plain) {
+		if (canSend())
+			queued(sender.sendText(msg_plain));
+	}
+
+	void sendKey(boolean press, int code) {
+		if (canSend())
+			queued(sender.sendKey(press, code));
+	}
+
+	void sendActionPress(int action) {
+		if (canSend())
+			queued(sender.sendCommand(actionCommand, 0,
+					Constants.encodeActionPress(action, actionCommand, 0)));
+	}
+
+	void sendActionRelease(int action) {
+		if (canSend())
+			queued(sender.sendCommand(actionCommand, 0,
+					Constants.encodeActionRelease(action, actionCommand, 0)));
+	}
+
+	void sendMouseMove(int dx, int dy) {
+		if (canSend())
+			queued(sender.sendMove(dx, dy));
+	}
+
+	void sendScroll(int dx, int dy) {
+		if (canSend())
+			queued(sender.sendScroll(dx, dy));
+	}
+
+	void sendZoom(int diff) {
+		if (canSend())
+			queued(sender.sendZoom(diff));
+	}
+
+	private boolean canSend() {
+		if (keys == null) {
 			Toast.makeText(getApplicationContext(),
 					getString(R.string.security_context_failed_),
 					Toast.LENGTH_LONG).show();
+			return false;
+		}
+		return true;
+	}
 
-			debug(ex.toString());
+	private void queued(boolean queued) {
+		if (!queued) {
+			debug("Send queue full (" + sender.getQueueDepth() + "/"
+					+ sender.getQueueCapacity() + ", " + sender.getDropped()
+					+ " dropped)");
 		}
 	}
 
@@ -0,0 +1,83 @@
+package com.linuxfunkar.mousekeysremote;
+
+/**
+ * Encrypted datagrams of the constant text commands. The cipher always
+ * starts from the same salt and IV, so a command like "KBP37" or "MSR"
+ * encrypts to the same bytes every time and only needs to go through the
+ * cipher once. The cache is filled up front with a bounded set of commands
+ * and never grows, commands carrying deltas are encrypted as before.
+ * Lookups don't allocate.
+ */
+class PayloadCache {
+	private final Security security;
+	private final byte[][] keys;
+	private final byte[][] values;
+	private final int mask;
+
+	/**
+	 * Encrypts the commands with the given security.
+	 */
+	public PayloadCache(Security security, String[] commands) {
+		this.security = security;
+		int size = 1;
+		while (size < 2 * commands.length)
+			size <<= 1;
+		keys = new byte[size][];
+		values = new byte[size][];
+		mask = size - 1;
+		for (String command : commands)
+			put(command);
+	}
+
+	public Security getSecurity() {
+		return security;
+	}
+
+	private void put(String command) {
+		try {
+			byte[] key = command.getBytes("US-ASCII");
+			int i = hash(key, 0, key.length) & mask;
+			while (keys[i] != null) {
+				if (equals(keys[i], key, 0, key.length))
+					return;
+				i = (i + 1) & mask;
+			}
+			values[i] = security.encrypt(key, 0, key.length).getBytes(
+					"US-ASCII");
+			keys[i] = key;
+		} catch (Exception ex) {
+			// Not cached, it goes through the cipher when sent
+		}
+	}
+
+	/**
+	 * @return the encrypted datagram for the command or null if it isn't
+	 *         one of the cached ones
+	 */
+	public byte[] get(byte[] command, int offset, int length) {
+		int i = hash(command, offset, length) & mask;
+		while (keys[i] != null) {
+			if (equals(keys[i], command, offset, length))
+				return values[i];
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	private static int hash(byte[] buf, int offset, int length) {
+		int h = 1;
+		for (int i = 0; i < length; i++)
+			h = 31 * h + buf[offset + i];
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equals(byte[] key, byte[] buf, int offset,
+			int length) {
+		if (key.length != length)
+			return false;
+		for (int i = 0; i < length; i++)
+			if (key[i] != buf[offset + i])
+				return false;
+		return true;
+	}
+}
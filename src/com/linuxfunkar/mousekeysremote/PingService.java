@@ -1,73 +1,207 @@
 package com.linuxfunkar.mousekeysremote;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import android.app.Activity;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.widget.Toast;
 
+/**
+ * Pings the server in the background to tell whether it is reachable and
+ * what it supports. The pings run on a single scheduled thread with one
+ * socket reused between them, so a server that is down never blocks the
+ * main thread; toasts and listener calls are posted back to it.
+ *
+ * While the server acknowledges data no pings are sent at all, an idle
+ * link is pinged every {@link #INTERVAL} and an unreachable server with
+ * exponential backoff. A network change probes again at once.
+ */
 public class PingService extends Service {
+	private static final long INTERVAL = 10000; // ms
+	private static final int TIMEOUT = 5000; // ms
+	private static final long MIN_BACKOFF = 2000; // ms
+	private static final long MAX_BACKOFF = 300000; // 5 min
+
+	public interface ConnectionListener {
+		/**
+		 * Called on the main thread when the server starts or stops
+		 * answering pings.
+		 */
+		void onConnectionChanged(String host, int port, boolean connected);
+	}
+
+	public interface TrafficMonitor {
+		/**
+		 * @return System.nanoTime() of the last acknowledgement of data sent
+		 *         to the server, 0 if none
+		 */
+		long getLastAck();
+	}
+
 	private final IBinder binder = new PingBinder();
 	private Handler handler;
+	private ScheduledExecutorService executor;
 	private Runnable timer;
+	// Only used on the executor thread
+	private ScheduledFuture<?> next;
 	private boolean connected = false;
+	private int failures = 0;
+	private final Random random = new Random();
+	private volatile DatagramSocket socket;
+	private String socketHost;
+	private int socketPort;
+	// The encrypted ping only changes with the password
+	private KeyProvider pingKeys;
+	private DatagramPacket request;
+	private final byte[] buf = new byte[64];
+	private final DatagramPacket response = new DatagramPacket(buf,
+			buf.length);
+
+	private volatile ConnectionListener listener;
+	private volatile TrafficMonitor monitor;
+	private final LinkStats stats = new LinkStats();
 
 	@Override
 	public void onCreate() {
 		super.onCreate();
 
 		handler = new Handler();
+		executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "PingService");
+						t.setDaemon(true);
+						return t;
+					}
+				});
 
 		timer = new Runnable() {
 			@Override
 			public void run() {
-				String host = getHost();
-				int port = getPort();
-				if (!host.equals("")) {
-					if (!connected) {
-						connected = ping(host, port);
-						if (connected) {
-							Toast.makeText(
-									getApplicationContext(),
-									getString(R.string.connection_established_with)
-											+ host + ":" + port,
-									Toast.LENGTH_SHORT).show();
-
-						}
-					} else {
-						boolean c = ping(host, port);
-						if (c == false) {
-							Toast.makeText(
-									getApplicationContext(),
-									getString(R.string.connection_lost) + host
-											+ ":" + port, Toast.LENGTH_LONG)
-									.show();
-						}
-						connected = c;
-					}
-				}
-				handler.postDelayed(timer, 10000);
+				schedule(heartbeat());
 			}
 		};
 
-		handler.postDelayed(timer, 100);
+		next = executor.schedule(timer, 100, TimeUnit.MILLISECONDS);
+		registerReceiver(networkReceiver, new IntentFilter(
+				ConnectivityManager.CONNECTIVITY_ACTION));
+	}
+
+	private final BroadcastReceiver networkReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			// The current state is delivered on registering, that is no
+			// change
+			if (!isInitialStickyBroadcast())
+				probeNow();
+		}
+	};
+
+	/**
+	 * Checks the server.
+	 *
+	 * @return milliseconds until the next check
+	 */
+	private long heartbeat() {
+		String host = getHost();
+		int port = getPort();
+		if (host.equals(""))
+			return INTERVAL;
+
+		TrafficMonitor m = monitor;
+		long lastAck = m != null ? m.getLastAck() : 0;
+		if (connected && lastAck != 0) {
+			long quiet = (System.nanoTime() - lastAck) / 1000000;
+			// The server is answering data, a ping would tell nothing new
+			if (quiet < INTERVAL)
+				return INTERVAL - quiet;
+		}
+
+		boolean c = ping(host, port);
+		if (c && !connected) {
+			toast(getString(R.string.connection_established_with) + host
+					+ ":" + port, Toast.LENGTH_SHORT);
+			notifyListener(host, port, true);
+		} else if (!c && connected) {
+			toast(getString(R.string.connection_lost) + host + ":" + port,
+					Toast.LENGTH_LONG);
+			notifyListener(host, port, false);
+		}
+		connected = c;
+		if (c) {
+			failures = 0;
+			return INTERVAL;
+		}
+		return backoff();
+	}
+
+	/**
+	 * @return a delay that doubles with each failed ping, randomized so
+	 *         that clients don't probe in step
+	 */
+	private long backoff() {
+		long delay = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failures,
+				16));
+		failures++;
+		return delay / 2 + (long) (random.nextDouble() * delay / 2);
+	}
+
+	private void schedule(long delay) {
+		try {
+			next = executor.schedule(timer, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ex) {
+			// Shut down
+		}
+	}
+
+	/**
+	 * Pings right away and forgets the backoff, after the network changed.
+	 */
+	private void probeNow() {
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (next != null)
+						next.cancel(false);
+					failures = 0;
+					timer.run();
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			// Shut down
+		}
 	}
 
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
-		handler.removeCallbacks(timer);
+		unregisterReceiver(networkReceiver);
+		executor.shutdownNow();
+		// Wakes a ping waiting for its answer
+		DatagramSocket s = socket;
+		if (s != null)
+			s.close();
 	}
 
 	@Override
@@ -84,38 +218,122 @@ public class PingService extends Service {
 		PingService getService() {
 			return PingService.this;
 		}
+
+		/**
+		 * @return round-trip time percentiles, jitter and loss of the
+		 *         recent pings, which are rare while data is acknowledged,
+		 *         and how old they are
+		 */
+		LinkStats.Snapshot getLinkStats() {
+			return stats.snapshot();
+		}
+	}
+
+	public void setConnectionListener(ConnectionListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Lets acknowledged data traffic stand in for pings, or pings always if
+	 * null.
+	 */
+	public void setTrafficMonitor(TrafficMonitor monitor) {
+		this.monitor = monitor;
+	}
+
+	private void notifyListener(final String host, final int port,
+			final boolean connected) {
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				ConnectionListener l = listener;
+				if (l != null)
+					l.onConnectionChanged(host, port, connected);
+			}
+		});
+	}
+
+	private void toast(final String text, final int duration) {
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				Toast.makeText(getApplicationContext(), text, duration).show();
+			}
+		});
+	}
+
+	/**
+	 * @return the socket connected to the server, opened again if the
+	 *         server changed or the last ping failed
+	 */
+	private DatagramSocket socket(String host, int port) throws IOException {
+		if (socket != null && (port != socketPort || !host.equals(socketHost)))
+			closeSocket();
+		if (socket == null) {
+			DatagramSocket s = new DatagramSocket();
+			s.connect(new InetSocketAddress(host, port));
+			s.setSoTimeout(TIMEOUT);
+			socketHost = host;
+			socketPort = port;
+			socket = s;
+		}
+		return socket;
+	}
+
+	private void closeSocket() {
+		if (socket != null) {
+			socket.close();
+			socket = null;
+		}
 	}
 
 	private boolean ping(String host, int port) {
 		try {
-			Security security = new Security(Preferences.getInstance(this)
+			KeyProvider keys = KeyProvider.get(Preferences.getInstance(this)
 					.getPassword());
+			if (keys != pingKeys) {
+				byte[] msg = keys.getSecurity().encrypt("ping")
+						.getBytes("UTF-8");
+				request = new DatagramPacket(msg, msg.length);
+				pingKeys = keys;
+			}
 
-			DatagramSocket socket = new DatagramSocket();
-			socket.connect(new InetSocketAddress(host, port));
-			byte[] msg = security.encrypt("ping").getBytes("UTF-8");
-			socket.send(new DatagramPacket(msg, msg.length));
-			socket.setSoTimeout(5000);
+			DatagramSocket socket = socket(host, port);
+			long start = System.nanoTime();
+			socket.send(request);
 
-			DatagramPacket response = new DatagramPacket(msg, 4);
+			// "pong", optionally followed by the protocol version, the
+			// server capabilities and their tag
+			response.setData(buf, 0, buf.length);
 			socket.receive(response);
-			BufferedReader input = new BufferedReader(new InputStreamReader(
-					new ByteArrayInputStream(response.getData()),
-					Charset.forName("UTF-8")));
-			String s = input.readLine();
-
-			if (!s.startsWith("pong")) {
-				Toast.makeText(
-						getApplicationContext(),
-						getString(R.string.wrong_response_from_server_at)
-								+ host + ":" + port, Toast.LENGTH_LONG).show();
+			long rtt = System.nanoTime() - start;
+			int length = response.getLength();
+			int version = Protocol.parsePongVersion(buf, 0, length,
+					keys.getReplyAuthenticator());
+
+			if (version < 0) {
+				// Whatever answers there, it isn't the server
+				stats.recordLoss();
+				closeSocket();
+				toast(getString(R.string.wrong_response_from_server_at) + host
+						+ ":" + port, Toast.LENGTH_LONG);
+				return false;
 			}
-			socket.close();
+			stats.record(rtt);
+			int capabilities = Protocol.parsePongCapabilities(buf, 0, length);
+			// Nothing to allocate while the server stays the same
+			ServerInfo known = ServerInfo.get(host, port);
+			if (known.getVersion() != version
+					|| known.getCapabilities() != capabilities)
+				ServerInfo.update(new ServerInfo(host, port, version,
+						capabilities));
 		} catch (Exception ex) {
-			Toast.makeText(
-					getApplicationContext(),
-					getString(R.string.connection_failed_with) + host + ":"
-							+ port, Toast.LENGTH_LONG).show();
+			stats.recordLoss();
+			// A late answer to this ping must not be taken for the next
+			closeSocket();
+			if (!executor.isShutdown())
+				toast(getString(R.string.connection_failed_with) + host + ":"
+						+ port, Toast.LENGTH_LONG);
 			return false;
 		}
 		return true;
@@ -0,0 +1,128 @@
+package com.linuxfunkar.mousekeysremote;
+
+/**
+ * Pointer ballistics: the gain applied to a movement as a function of its
+ * speed, low for precise slow movements and high for travel across large
+ * screens. The curve is sampled once into a lookup table over speeds up to
+ * {@link #MAX_SPEED}, so applying it costs one square root and one table
+ * read per movement. Only applied to the mouse pad, the sensor mouse keeps
+ * the plain speed setting.
+ */
+final class PointerCurve {
+	/** Constant gain, the speed setting alone */
+	public static final int LINEAR = 0;
+	/** Gain grows with a power of the speed */
+	public static final int POWER = 1;
+	/** Gain moves smoothly from a slow to a fast plateau */
+	public static final int SIGMOID = 2;
+	/** Gain interpolated between control points */
+	public static final int CUSTOM = 3;
+
+	/** Speed in pixels per millisecond from which the gain stays the same */
+	public static final float MAX_SPEED = 8;
+
+	private static final int SIZE = 256;
+	private static final float STEPS = SIZE / MAX_SPEED;
+	// Speed at which the power and sigmoid curves have a gain of about 1
+	private static final float REFERENCE = 1;
+
+	private final float[] gains = new float[SIZE];
+
+	private PointerCurve() {
+	}
+
+	/**
+	 * @param speed
+	 *            the speed setting of the layout, which scales every curve
+	 * @param points
+	 *            control points of the {@link #CUSTOM} curve as
+	 *            "speed:gain,speed:gain,...", speeds in pixels per
+	 *            millisecond. A custom curve without valid points is linear.
+	 */
+	public static PointerCurve create(int type, float speed, String points) {
+		PointerCurve curve = new PointerCurve();
+		float[] custom = type == CUSTOM ? parsePoints(points) : null;
+		for (int i = 0; i < SIZE; i++) {
+			float v = i / STEPS;
+			float gain;
+			switch (type) {
+				case POWER:
+					gain = Math.max(0.25f,
+							(float) Math.pow(v / REFERENCE, 0.6));
+					break;
+				case SIGMOID:
+					gain = 0.4f + 2.6f / (1 + (float) Math
+							.exp(-(v - REFERENCE) / 0.3f));
+					break;
+				case CUSTOM:
+					gain = custom != null ? interpolate(custom, v) : 1;
+					break;
+				default:
+					gain = 1;
+			}
+			curve.gains[i] = speed * gain;
+		}
+		return curve;
+	}
+
+	/**
+	 * @param dt
+	 *            milliseconds the movement took
+	 * @return the factor to multiply the movement with
+	 */
+	public float gain(float dx, float dy, long dt) {
+		// Samples with the same time stamp count as one millisecond apart
+		float v = (float) Math.sqrt(dx * dx + dy * dy) / Math.max(dt, 1);
+		int i = (int) (v * STEPS);
+		return gains[i < SIZE ? i : SIZE - 1];
+	}
+
+	/**
+	 * @return speed and gain pairs sorted by speed, or null if there are
+	 *         none or the text is malformed
+	 */
+	private static float[] parsePoints(String text) {
+		if (text == null || text.trim().length() == 0)
+			return null;
+		String[] pairs = text.split(",");
+		float[] points = new float[2 * pairs.length];
+		try {
+			for (int i = 0; i < pairs.length; i++) {
+				String[] pair = pairs[i].split(":");
+				if (pair.length != 2)
+					return null;
+				float v = Float.parseFloat(pair[0].trim());
+				float gain = Float.parseFloat(pair[1].trim());
+				if (v < 0 || gain < 0)
+					return null;
+				// Insertion sort, there are only a few points
+				int j = i;
+				while (j > 0 && points[2 * j - 2] > v) {
+					points[2 * j] = points[2 * j - 2];
+					points[2 * j + 1] = points[2 * j - 1];
+					j--;
+				}
+				points[2 * j] = v;
+				points[2 * j + 1] = gain;
+			}
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+		return points;
+	}
+
+	private static float interpolate(float[] points, float v) {
+		if (v <= points[0])
+			return points[1];
+		for (int i = 2; i < points.length; i += 2) {
+			if (v <= points[i]) {
+				float v0 = points[i - 2];
+				float g0 = points[i - 1];
+				if (points[i] == v0)
+					return points[i + 1];
+				return g0 + (points[i + 1] - g0) * (v - v0) / (points[i] - v0);
+			}
+		}
+		return points[points.length - 1];
+	}
+}
@@ -0,0 +1,490 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Wire formats understood by the server.
+ *
+ * Version 1 is the original text protocol ("KBP1205", "XMM-12", ...), one
+ * command per datagram. A version 2 payload starts with a header: the
+ * {@link #VERSION_2} byte, a flags byte, a random 32-bit session id, the
+ * 32-bit send time in microseconds and a varint sequence number counting
+ * the packets of the session. One or more frames follow, each a varint
+ * length and a binary command: a one-byte opcode and its arguments as
+ * varints, signed values zigzag encoded.
+ *
+ * Key and text commands travel in {@link #FLAG_RELIABLE} packets, which
+ * have their own sequence numbers and are acknowledged by servers with
+ * {@link #CAP_RELIABLE}. Their acknowledgement is a header with
+ * {@link #FLAG_ACK}, no time and no sequence number, followed by the
+ * highest sequence number received in order and a 32-bit map of the ones
+ * received after it. With {@link #FLAG_RESET} it says instead that the
+ * server can't go on with the session, so the client starts a new one.
+ * Servers with {@link #CAP_LEASE} release held keys
+ * whose lease the client stops renewing. With {@link #CAP_AEAD} the
+ * packets are sealed by {@link SessionCipher} instead of the legacy
+ * {@link Security}. Servers with {@link #CAP_SCROLL} scroll by fractions
+ * of a wheel step. Commands are always built in the binary form and
+ * translated to text by {@link #toText} when the server only speaks
+ * version 1. A server announces version 2 by appending the
+ * version byte, a capability varint and a {@link ReplyAuthenticator} tag
+ * to its "pong".
+ */
+final class Protocol {
+	public static final int VERSION_1 = 1;
+	public static final int VERSION_2 = 2;
+
+	/** Key press, argument: key code */
+	public static final int OP_KEY_PRESS = 0x01;
+	/** Key release, argument: key code */
+	public static final int OP_KEY_RELEASE = 0x02;
+	/** Relative mouse move, arguments: signed dx, signed dy */
+	public static final int OP_MOVE = 0x03;
+	/** Mouse wheel, argument: signed steps */
+	public static final int OP_WHEEL = 0x04;
+	/** Pinch zoom, argument: signed span difference */
+	public static final int OP_ZOOM = 0x05;
+	/** Any other command, argument: the text command up to the end */
+	public static final int OP_TEXT = 0x06;
+	/**
+	 * Key lease renewal, arguments: lease in milliseconds, then the codes of
+	 * the keys held down
+	 */
+	public static final int OP_LEASE = 0x07;
+	/**
+	 * Smooth scroll, arguments: signed horizontal and vertical distance in
+	 * 1/{@link #SCROLL_DETENT} of a wheel step, positive right and up like
+	 * {@link #OP_WHEEL}
+	 */
+	public static final int OP_SCROLL = 0x08;
+
+	/** Scroll units per wheel step, as on Windows and in XInput 2 */
+	public static final int SCROLL_DETENT = 120;
+
+	/** Packet flag: commands that must not be lost */
+	public static final int FLAG_RELIABLE = 0x01;
+	/** Packet flag: acknowledgement of reliable packets */
+	public static final int FLAG_ACK = 0x02;
+	/** Acknowledgement flag: the server doesn't know the session */
+	public static final int FLAG_RESET = 0x04;
+
+	/** Capability: the server acknowledges reliable packets */
+	public static final int CAP_RELIABLE = 0x01;
+	/** Capability: the server releases keys whose lease ran out */
+	public static final int CAP_LEASE = 0x02;
+	/**
+	 * Capability: the server takes packets sealed by {@link SessionCipher}
+	 * and seals its acknowledgements the same way
+	 */
+	public static final int CAP_AEAD = 0x04;
+	/** Capability: the server scrolls by {@link #OP_SCROLL} */
+	public static final int CAP_SCROLL = 0x08;
+
+	public static final int MAX_VARINT = 5;
+
+	/**
+	 * Largest version 2 payload before encryption. DES padding and Base64
+	 * keep the datagram below 1400 bytes, safe for common path MTUs.
+	 */
+	public static final int MAX_PAYLOAD = 1024;
+
+	// Offset of the send time in a version 2 header
+	private static final int TIMESTAMP_OFFSET = 6;
+
+	private static final byte[] PONG = { 'p', 'o', 'n', 'g' };
+
+	private Protocol() {
+	}
+
+	public static int zigzag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	public static int unzigzag(int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	/**
+	 * Writes an unsigned varint.
+	 *
+	 * @return the position after the varint
+	 */
+	public static int putVarint(byte[] buf, int pos, int value) {
+		while ((value & ~0x7f) != 0) {
+			buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buf[pos++] = (byte) value;
+		return pos;
+	}
+
+	public static int putSignedVarint(byte[] buf, int pos, int value) {
+		return putVarint(buf, pos, zigzag(value));
+	}
+
+	public static int putInt(byte[] buf, int pos, int value) {
+		buf[pos++] = (byte) (value >>> 24);
+		buf[pos++] = (byte) (value >>> 16);
+		buf[pos++] = (byte) (value >>> 8);
+		buf[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * Writes the header of a version 2 payload. The send time is filled in
+	 * by {@link #stampPacket} right before the packet goes out.
+	 *
+	 * @return the position of the first frame
+	 */
+	public static int startPacket(byte[] buf, int flags, int session,
+			int sequence) {
+		buf[0] = VERSION_2;
+		buf[1] = (byte) flags;
+		int pos = putInt(buf, 2, session);
+		pos = putInt(buf, pos, 0);
+		return putVarint(buf, pos, sequence);
+	}
+
+	public static void stampPacket(byte[] buf, int micros) {
+		putInt(buf, TIMESTAMP_OFFSET, micros);
+	}
+
+	/**
+	 * Writes the acknowledgement of the reliable packets of a session.
+	 *
+	 * @param received
+	 *            bit n is set if packet cumulative + 1 + n has been received
+	 * @return the length of the acknowledgement
+	 */
+	public static int writeAck(byte[] buf, int session, int cumulative,
+			int received) {
+		buf[0] = VERSION_2;
+		buf[1] = FLAG_ACK;
+		int pos = putInt(buf, 2, session);
+		pos = putVarint(buf, pos, cumulative);
+		return putInt(buf, pos, received);
+	}
+
+	/**
+	 * Writes the answer to a reliable packet of a session the server can't
+	 * take up: an acknowledgement of nothing with {@link #FLAG_RESET}.
+	 *
+	 * @return the length of the answer
+	 */
+	public static int writeReset(byte[] buf, int session) {
+		int length = writeAck(buf, session, 0, 0);
+		buf[1] |= FLAG_RESET;
+		return length;
+	}
+
+	/**
+	 * @return whether the command must go through the reliable lane. Motion
+	 *         is sent best effort, a lost delta is better than a late one.
+	 */
+	public static boolean isReliable(int op) {
+		return op != OP_MOVE && op != OP_WHEEL && op != OP_ZOOM
+				&& op != OP_SCROLL && op != OP_LEASE;
+	}
+
+	/**
+	 * Current time for packet timestamps. Only differences are meaningful,
+	 * the value wraps after about 71 minutes.
+	 */
+	public static int micros() {
+		return (int) (System.nanoTime() / 1000);
+	}
+
+	public static int encodeKey(byte[] buf, int pos, boolean press, int code) {
+		buf[pos++] = (byte) (press ? OP_KEY_PRESS : OP_KEY_RELEASE);
+		return putVarint(buf, pos, code);
+	}
+
+	public static int encodeMove(byte[] buf, int pos, int dx, int dy) {
+		buf[pos++] = OP_MOVE;
+		pos = putSignedVarint(buf, pos, dx);
+		return putSignedVarint(buf, pos, dy);
+	}
+
+	public static int encodeWheel(byte[] buf, int pos, int steps) {
+		buf[pos++] = OP_WHEEL;
+		return putSignedVarint(buf, pos, steps);
+	}
+
+	public static int encodeZoom(byte[] buf, int pos, int diff) {
+		buf[pos++] = OP_ZOOM;
+		return putSignedVarint(buf, pos, diff);
+	}
+
+	public static int encodeScroll(byte[] buf, int pos, int dx, int dy) {
+		buf[pos++] = OP_SCROLL;
+		pos = putSignedVarint(buf, pos, dx);
+		return putSignedVarint(buf, pos, dy);
+	}
+
+	/**
+	 * @return the position after the command or -1 if it doesn't fit
+	 */
+	public static int encodeLease(byte[] buf, int pos, int millis,
+			int[] codes, int count) {
+		if (pos + 1 + (count + 1) * MAX_VARINT > buf.length)
+			return -1;
+		buf[pos++] = OP_LEASE;
+		pos = putVarint(buf, pos, millis);
+		for (int i = 0; i < count; i++)
+			pos = putVarint(buf, pos, codes[i]);
+		return pos;
+	}
+
+	/**
+	 * Writes a text command. ASCII, which covers every built-in command, is
+	 * copied without allocating.
+	 *
+	 * @return the position after the command or -1 if it doesn't fit
+	 */
+	public static int encodeText(byte[] buf, int pos, String command) {
+		int length = command.length();
+		if (pos + 1 + length > buf.length)
+			return -1;
+		buf[pos++] = OP_TEXT;
+		for (int i = 0; i < length; i++) {
+			char ch = command.charAt(i);
+			if (ch >= 0x80)
+				return encodeUtf8(buf, pos, command);
+			buf[pos + i] = (byte) ch;
+		}
+		return pos + length;
+	}
+
+	private static int encodeUtf8(byte[] buf, int pos, String command) {
+		try {
+			byte[] bytes = command.getBytes("UTF-8");
+			if (pos + bytes.length > buf.length)
+				return -1;
+			System.arraycopy(bytes, 0, buf, pos, bytes.length);
+			return pos + bytes.length;
+		} catch (UnsupportedEncodingException ex) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Translates one binary command into the version 1 text command. Version
+	 * 1 has no diagonal move, so only moves along one axis translate. A
+	 * scroll becomes the whole wheel steps it contains, with no horizontal
+	 * counterpart, so the fractions of a step are lost.
+	 *
+	 * @return the position after the text or -1 if the command is malformed
+	 *         or doesn't fit
+	 */
+	public static int toText(Reader command, byte[] dst, int pos) {
+		try {
+			int op = command.readByte();
+			switch (op) {
+				case OP_KEY_PRESS:
+					pos = putAscii(dst, pos, "KBP");
+					return putDecimal(dst, pos, command.readVarint());
+				case OP_KEY_RELEASE:
+					pos = putAscii(dst, pos, "KBR");
+					return putDecimal(dst, pos, command.readVarint());
+				case OP_MOVE:
+					int dx = command.readSignedVarint();
+					int dy = command.readSignedVarint();
+					if (dy == 0) {
+						pos = putAscii(dst, pos, "XMM");
+						return putDecimal(dst, pos, dx);
+					}
+					if (dx == 0) {
+						pos = putAscii(dst, pos, "YMM");
+						return putDecimal(dst, pos, dy);
+					}
+					return -1;
+				case OP_WHEEL:
+					pos = putAscii(dst, pos, "MWS");
+					return putDecimal(dst, pos, command.readSignedVarint());
+				case OP_ZOOM:
+					pos = putAscii(dst, pos, "MPZ");
+					return putDecimal(dst, pos, command.readSignedVarint());
+				case OP_SCROLL:
+					command.readSignedVarint();
+					pos = putAscii(dst, pos, "MWS");
+					return putDecimal(dst, pos, command.readSignedVarint()
+							/ SCROLL_DETENT);
+				case OP_TEXT:
+					return command.readRemaining(dst, pos);
+			}
+		} catch (ArrayIndexOutOfBoundsException ex) {
+		}
+		return -1;
+	}
+
+	private static int putAscii(byte[] dst, int pos, String s) {
+		for (int i = 0; i < s.length(); i++)
+			dst[pos++] = (byte) s.charAt(i);
+		return pos;
+	}
+
+	private static int putDecimal(byte[] dst, int pos, int value) {
+		long v = value;
+		if (v < 0) {
+			dst[pos++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for (long t = v; t >= 10; t /= 10)
+			digits++;
+		for (int i = pos + digits - 1; i >= pos; i--) {
+			dst[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		return pos + digits;
+	}
+
+	/**
+	 * Writes the answer of a version 2 server to a ping.
+	 *
+	 * @return the length of the answer
+	 */
+	public static int writePong(byte[] buf, int capabilities,
+			ReplyAuthenticator authenticator) {
+		for (int i = 0; i < PONG.length; i++)
+			buf[i] = PONG[i];
+		buf[PONG.length] = VERSION_2;
+		int pos = putVarint(buf, PONG.length + 1, capabilities);
+		return authenticator.sign(null, buf, pos);
+	}
+
+	/**
+	 * Parses the version a server announces in its ping response. Plain
+	 * "pong" means version 1; a version trailer counts only if its tag
+	 * checks out.
+	 *
+	 * @return the version, or -1 if this isn't a pong at all or its trailer
+	 *         is forged
+	 */
+	public static int parsePongVersion(byte[] buf, int offset, int length,
+			ReplyAuthenticator authenticator) {
+		if (length < PONG.length)
+			return -1;
+		for (int i = 0; i < PONG.length; i++)
+			if (buf[offset + i] != PONG[i])
+				return -1;
+		if (length == PONG.length)
+			return VERSION_1;
+		if (!authenticator.verify(null, buf, offset, length))
+			return -1;
+		int version = buf[offset + PONG.length] & 0xff;
+		return version >= VERSION_2 ? version : VERSION_1;
+	}
+
+	/**
+	 * Parses the capability bits following the version in a pong, 0 if
+	 * there are none. Only for a pong {@link #parsePongVersion} accepted.
+	 */
+	public static int parsePongCapabilities(byte[] buf, int offset,
+			int length) {
+		int end = offset + length;
+		int value = 0;
+		for (int pos = offset + PONG.length + 1, shift = 0; pos < end
+				&& shift < 32; pos++, shift += 7) {
+			int b = buf[pos];
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		// Missing or truncated
+		return 0;
+	}
+
+	/**
+	 * Cursor over an encoded command. Reading past the end throws
+	 * ArrayIndexOutOfBoundsException. Instances are meant to be reused.
+	 */
+	static final class Reader {
+		private byte[] buf;
+		private int pos;
+		private int limit;
+
+		public void reset(byte[] buf, int offset, int length) {
+			this.buf = buf;
+			pos = offset;
+			limit = offset + length;
+		}
+
+		public boolean hasRemaining() {
+			return pos < limit;
+		}
+
+		public int remaining() {
+			return limit - pos;
+		}
+
+		public int position() {
+			return pos;
+		}
+
+		public int readByte() {
+			if (pos >= limit)
+				throw new ArrayIndexOutOfBoundsException(pos);
+			return buf[pos++] & 0xff;
+		}
+
+		public int readVarint() {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = readByte();
+				value |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new ArrayIndexOutOfBoundsException(pos);
+		}
+
+		public int readSignedVarint() {
+			return unzigzag(readVarint());
+		}
+
+		public int readInt() {
+			return readByte() << 24 | readByte() << 16 | readByte() << 8
+					| readByte();
+		}
+
+		/**
+		 * Copies the rest of the command into dst.
+		 *
+		 * @return the position in dst after the copied bytes
+		 */
+		public int readRemaining(byte[] dst, int offset) {
+			int length = limit - pos;
+			System.arraycopy(buf, pos, dst, offset, length);
+			pos = limit;
+			return offset + length;
+		}
+
+		/**
+		 * Positions frame on the next length-prefixed frame of a version 2
+		 * payload and skips past it.
+		 *
+		 * @return false if there are no more frames
+		 */
+		public boolean nextFrame(Reader frame) {
+			if (pos >= limit)
+				return false;
+			int length = readVarint();
+			if (length > limit - pos)
+				throw new ArrayIndexOutOfBoundsException(pos + length);
+			frame.reset(buf, pos, length);
+			pos += length;
+			return true;
+		}
+
+		public String readRemainingText() {
+			try {
+				String s = new String(buf, pos, limit - pos, "UTF-8");
+				pos = limit;
+				return s;
+			} catch (UnsupportedEncodingException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.linuxfunkar.mousekeysremote;
+
+/**
+ * Client side of the reliable lane. Keeps a copy of every reliable packet
+ * until the server acknowledges it and decides when to retransmit, with
+ * the retransmission timeout derived from measured round trips as in
+ * RFC 6298. Only used from the sender thread.
+ */
+class ReliableLane {
+	public static final int WINDOW = 32;
+
+	private static final int MAX_RETRIES = 8;
+	private static final long INITIAL_RTO = 250000000L; // 250 ms
+	private static final long MIN_RTO = 30000000L; // 30 ms
+	private static final long MAX_RTO = 2000000000L; // 2 s
+
+	private final byte[][] packets = new byte[WINDOW][Protocol.MAX_PAYLOAD];
+	private final int[] lengths = new int[WINDOW];
+	private final int[] sequences = new int[WINDOW];
+	private final long[] sentAt = new long[WINDOW];
+	private final int[] retries = new int[WINDOW];
+	private final boolean[] pending = new boolean[WINDOW];
+
+	private volatile long srtt = -1;
+	private long rttvar;
+	private long rto = INITIAL_RTO;
+
+	private volatile long lastAck = 0;
+	private volatile long retransmits = 0;
+	private volatile long abandoned = 0;
+
+	public void reset() {
+		for (int i = 0; i < WINDOW; i++)
+			pending[i] = false;
+	}
+
+	public boolean hasRoom(int sequence) {
+		return !pending[sequence & (WINDOW - 1)];
+	}
+
+	public void add(int sequence, byte[] packet, int length, long now) {
+		int slot = sequence & (WINDOW - 1);
+		System.arraycopy(packet, 0, packets[slot], 0, length);
+		lengths[slot] = length;
+		sequences[slot] = sequence;
+		sentAt[slot] = now;
+		retries[slot] = 0;
+		pending[slot] = true;
+	}
+
+	/**
+	 * Applies an acknowledgement from the server.
+	 *
+	 * @param received
+	 *            bit n is set if packet cumulative + 1 + n has arrived
+	 */
+	public void acknowledge(int cumulative, int received, long now) {
+		lastAck = now;
+		for (int i = 0; i < WINDOW; i++) {
+			if (!pending[i])
+				continue;
+			int after = sequences[i] - cumulative - 1;
+			if (after < 0 || (after < 32 && (received & (1 << after)) != 0)) {
+				// Karn: retransmitted packets give ambiguous samples
+				if (retries[i] == 0)
+					sample(now - sentAt[i]);
+				pending[i] = false;
+			}
+		}
+	}
+
+	private void sample(long rtt) {
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt / 2;
+		} else {
+			long err = srtt - rtt;
+			rttvar = (3 * rttvar + (err < 0 ? -err : err)) / 4;
+			srtt = (7 * srtt + rtt) / 8;
+		}
+		rto = Math.max(MIN_RTO, Math.min(MAX_RTO, srtt + 4 * rttvar));
+	}
+
+	private long timeout(int slot) {
+		return Math.min(MAX_RTO, rto << retries[slot]);
+	}
+
+	/**
+	 * @return the slot of a packet that is due for retransmission, or -1
+	 */
+	public int due(long now) {
+		for (int i = 0; i < WINDOW; i++) {
+			if (pending[i] && now - sentAt[i] >= timeout(i))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Records that the packet in the slot is sent again, or gives up on it
+	 * after too many attempts.
+	 *
+	 * @return false if the packet was given up and must not be sent
+	 */
+	public boolean retransmit(int slot, long now) {
+		if (retries[slot] >= MAX_RETRIES) {
+			pending[slot] = false;
+			abandoned++;
+			return false;
+		}
+		retries[slot]++;
+		sentAt[slot] = now;
+		retransmits++;
+		return true;
+	}
+
+	/**
+	 * Gives up the unacknowledged packet with the lowest sequence number,
+	 * to send its commands again in a new session. Its copy stays readable
+	 * until the next {@link #add}.
+	 *
+	 * @return its slot, or -1 if there is none
+	 */
+	public int takeOldest() {
+		int oldest = -1;
+		for (int i = 0; i < WINDOW; i++) {
+			if (pending[i]
+					&& (oldest < 0 || sequences[i] - sequences[oldest] < 0))
+				oldest = i;
+		}
+		if (oldest >= 0)
+			pending[oldest] = false;
+		return oldest;
+	}
+
+	public byte[] packet(int slot) {
+		return packets[slot];
+	}
+
+	public int length(int slot) {
+		return lengths[slot];
+	}
+
+	/**
+	 * @return nanoseconds until the next retransmission is due, or
+	 *         Long.MAX_VALUE if nothing is waiting for an acknowledgement
+	 */
+	public long nextTimeout(long now) {
+		long next = Long.MAX_VALUE;
+		for (int i = 0; i < WINDOW; i++) {
+			if (pending[i])
+				next = Math.min(next, sentAt[i] + timeout(i) - now);
+		}
+		return next;
+	}
+
+	public int getInFlight() {
+		int n = 0;
+		for (int i = 0; i < WINDOW; i++)
+			if (pending[i])
+				n++;
+		return n;
+	}
+
+	/**
+	 * @return System.nanoTime() of the last acknowledgement, 0 if none
+	 */
+	public long getLastAck() {
+		return lastAck;
+	}
+
+	public long getRetransmits() {
+		return retransmits;
+	}
+
+	public long getAbandoned() {
+		return abandoned;
+	}
+
+	/**
+	 * @return the smoothed round trip time in nanoseconds, -1 if unknown
+	 */
+	public long getSmoothedRtt() {
+		return srtt;
+	}
+}
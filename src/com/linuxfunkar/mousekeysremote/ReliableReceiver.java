@@ -0,0 +1,177 @@
+package com.linuxfunkar.mousekeysremote;
+
+/**
+ * Receiver side of the reliable lane. Hands reliable packets on strictly
+ * in sequence order, holding back the ones that arrive early, and builds
+ * the acknowledgements the client retransmits from. A gap that is not
+ * filled within {@link #GAP_TIMEOUT} (the client gave up) is skipped so the
+ * lane doesn't stall.
+ *
+ * A session is only taken up from its first packet. One that begins further
+ * on started before this receiver knew it, after a restart or when the
+ * session was forgotten for being idle, and the packets before will never
+ * come. Such a session is lost: nothing of it is delivered or acknowledged,
+ * and the client is told to start a new one.
+ */
+class ReliableReceiver {
+	public static final long GAP_TIMEOUT = 3000000000L; // 3 s
+
+	private static final int WINDOW = 32;
+
+	public interface PacketHandler {
+		/**
+		 * Called with the frames of a packet, in sequence order.
+		 */
+		void onPacket(byte[] buf, int offset, int length);
+	}
+
+	private final byte[][] held = new byte[WINDOW][Protocol.MAX_PAYLOAD];
+	private final int[] heldLength = new int[WINDOW];
+	private final boolean[] isHeld = new boolean[WINDOW];
+
+	private int session;
+	private boolean started = false;
+	// Whether the first packet of the session has arrived
+	private boolean synced;
+	private boolean lost;
+	// Last sequence number handed on
+	private int delivered;
+	private long gapSince;
+
+	private long duplicates = 0;
+	private long skipped = 0;
+
+	/**
+	 * Accepts the frames of a reliable packet.
+	 *
+	 * @param now
+	 *            System.nanoTime()
+	 * @return whether the packet may be acknowledged, which it may not
+	 *         before the first packet of the session has arrived
+	 */
+	public boolean receive(int session, int sequence, byte[] buf,
+			int offset, int length, long now, PacketHandler handler) {
+		if (!started || session != this.session) {
+			// Reliable sequence numbers start at 1 in every session
+			this.session = session;
+			started = true;
+			synced = false;
+			lost = false;
+			delivered = 0;
+			clearHeld();
+		}
+		if (lost)
+			return false;
+
+		int ahead = sequence - delivered;
+		if (ahead <= 0) {
+			duplicates++;
+			return true;
+		}
+		if (ahead == 1) {
+			delivered = sequence;
+			synced = true;
+			handler.onPacket(buf, offset, length);
+			deliverHeld(handler);
+			return true;
+		}
+		if (ahead > WINDOW) {
+			if (!synced) {
+				// Begun before this receiver knew it
+				lost = true;
+				clearHeld();
+				return false;
+			}
+			// Too far ahead to hold, the client will send it again
+			return true;
+		}
+		int slot = sequence & (WINDOW - 1);
+		if (isHeld[slot]) {
+			duplicates++;
+			return synced;
+		}
+		if (!hasHeld())
+			gapSince = now;
+		System.arraycopy(buf, offset, held[slot], 0, length);
+		heldLength[slot] = length;
+		isHeld[slot] = true;
+		return synced;
+	}
+
+	/**
+	 * Skips a gap that has been open for too long. Should be called
+	 * periodically.
+	 */
+	public void expire(long now, PacketHandler handler) {
+		while (hasHeld() && now - gapSince >= GAP_TIMEOUT) {
+			if (!synced) {
+				// The first packet never came
+				lost = true;
+				clearHeld();
+				return;
+			}
+			delivered++;
+			int slot = delivered & (WINDOW - 1);
+			if (isHeld[slot]) {
+				isHeld[slot] = false;
+				handler.onPacket(held[slot], 0, heldLength[slot]);
+			} else {
+				skipped++;
+			}
+			deliverHeld(handler);
+			gapSince = now;
+		}
+	}
+
+	private void deliverHeld(PacketHandler handler) {
+		int slot = (delivered + 1) & (WINDOW - 1);
+		while (isHeld[slot]) {
+			isHeld[slot] = false;
+			delivered++;
+			handler.onPacket(held[slot], 0, heldLength[slot]);
+			slot = (delivered + 1) & (WINDOW - 1);
+		}
+	}
+
+	private void clearHeld() {
+		for (int i = 0; i < WINDOW; i++)
+			isHeld[i] = false;
+	}
+
+	private boolean hasHeld() {
+		for (int i = 0; i < WINDOW; i++)
+			if (isHeld[i])
+				return true;
+		return false;
+	}
+
+	/**
+	 * Writes the acknowledgement for the current state into buf.
+	 *
+	 * @return its length
+	 */
+	public int writeAck(byte[] buf) {
+		int received = 0;
+		for (int n = 0; n < WINDOW; n++) {
+			if (isHeld[(delivered + 1 + n) & (WINDOW - 1)])
+				received |= 1 << n;
+		}
+		return Protocol.writeAck(buf, session, delivered, received);
+	}
+
+	/**
+	 * @return whether the session can't be delivered in order here, so the
+	 *         client has to start a new one
+	 */
+	public boolean isLost() {
+		return lost;
+	}
+
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	public long getSkipped() {
+		return skipped;
+	}
+}
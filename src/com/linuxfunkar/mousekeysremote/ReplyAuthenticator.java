@@ -0,0 +1,76 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticates the replies a server sends unencrypted: the version trailer
+ * of a pong and the answer to a discovery probe. Each carries a 16 byte
+ * HMAC-SHA256 tag over the reply and, for discovery, the random nonce of
+ * the probe, so no host without the password can forge an answer or replay
+ * one from another server. The key is derived from the
+ * {@link SessionCipher} key. Not thread safe, {@link KeyProvider} hands out
+ * one per thread.
+ */
+final class ReplyAuthenticator {
+	public static final int TAG = 16;
+
+	private final Mac mac;
+	private final byte[] tag = new byte[32];
+
+	/**
+	 * @param master
+	 *            the key from {@link KeyProvider#getReplyAuthenticator}
+	 */
+	ReplyAuthenticator(byte[] master) throws GeneralSecurityException {
+		Mac kdf = Mac.getInstance("HmacSHA256");
+		kdf.init(new SecretKeySpec(master, "HmacSHA256"));
+		kdf.update((byte) 'r');
+		mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(kdf.doFinal(), "HmacSHA256"));
+	}
+
+	/**
+	 * Appends the tag to the reply in buf, which needs room for
+	 * {@link #TAG} more bytes.
+	 *
+	 * @param nonce
+	 *            the nonce of the request, or null if it has none
+	 * @return the length of the reply with the tag
+	 */
+	public int sign(byte[] nonce, byte[] buf, int length) {
+		compute(nonce, buf, 0, length);
+		System.arraycopy(tag, 0, buf, length, TAG);
+		return length + TAG;
+	}
+
+	/**
+	 * @param length
+	 *            the length of the reply including its tag
+	 * @return whether the reply ends in a valid tag
+	 */
+	public boolean verify(byte[] nonce, byte[] buf, int offset, int length) {
+		if (length < TAG)
+			return false;
+		int size = length - TAG;
+		compute(nonce, buf, offset, size);
+		int diff = 0;
+		for (int i = 0; i < TAG; i++)
+			diff |= tag[i] ^ buf[offset + size + i];
+		return diff == 0;
+	}
+
+	private void compute(byte[] nonce, byte[] buf, int offset, int length) {
+		if (nonce != null)
+			mac.update(nonce);
+		mac.update(buf, offset, length);
+		try {
+			mac.doFinal(tag, 0);
+		} catch (ShortBufferException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+}
@@ -1,46 +1,54 @@
 package com.linuxfunkar.mousekeysremote;
 
 import java.io.UnsupportedEncodingException;
-import java.security.InvalidAlgorithmParameterException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.PBEParameterSpec;
-
-import android.util.Base64;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * PBEWithMD5AndDES encryption, with the key and IV derived from the
+ * password by {@link KeyProvider}. Not thread safe, get one per thread from
+ * {@link KeyProvider#getSecurity()}.
+ */
 class Security {
-	private static final String algorithm = "PBEWithMD5AndDES";
-	private static final byte[] salt = new byte[] { 67, (byte) 222, 18,
-			(byte) 174, 59, (byte) 243, 69, 125 };
+	private static final String algorithm = "DES/CBC/PKCS5Padding";
 
-	private SecretKey key;
 	private Cipher cipher;
+	private Cipher decipher;
 
-	public Security(String password) throws NoSuchAlgorithmException,
-			InvalidKeyException, InvalidKeySpecException,
-			NoSuchPaddingException, InvalidAlgorithmParameterException {
-		SecretKeyFactory factory = SecretKeyFactory.getInstance(algorithm);
-		char[] pass = password.toCharArray();
-		key = factory.generateSecret(new PBEKeySpec(pass));
+	Security(byte[] key, byte[] iv) throws GeneralSecurityException {
+		SecretKeySpec spec = new SecretKeySpec(key, "DES");
 		cipher = Cipher.getInstance(algorithm);
-		cipher.init(Cipher.ENCRYPT_MODE, key, new PBEParameterSpec(salt, 2048));
+		cipher.init(Cipher.ENCRYPT_MODE, spec, new IvParameterSpec(iv));
+		decipher = Cipher.getInstance(algorithm);
+		decipher.init(Cipher.DECRYPT_MODE, spec, new IvParameterSpec(iv));
 	}
 
 	public String encrypt(String msg) throws InvalidKeyException,
 			BadPaddingException, IllegalBlockSizeException,
 			UnsupportedEncodingException {
 		byte[] inputBytes = msg.getBytes("UTF-8");
-		byte[] encbytes = cipher.doFinal(inputBytes);
-		String ret = Base64.encodeToString(encbytes, Base64.NO_WRAP);
+		return encrypt(inputBytes, 0, inputBytes.length);
+	}
+
+	public String encrypt(byte[] input, int offset, int length)
+			throws BadPaddingException, IllegalBlockSizeException {
+		byte[] encbytes = cipher.doFinal(input, offset, length);
+		String ret = Base64Coder.encode(encbytes, 0, encbytes.length);
 		return ret;
 	}
+
+	/**
+	 * Decrypts a Base64 encoded message, as sent back by the server.
+	 */
+	public byte[] decrypt(byte[] input, int offset, int length)
+			throws BadPaddingException, IllegalBlockSizeException {
+		byte[] encbytes = Base64Coder.decode(input, offset, length);
+		return decipher.doFinal(encbytes);
+	}
 }
@@ -0,0 +1,108 @@
+package com.linuxfunkar.mousekeysremote;
+
+/**
+ * Receiver side bookkeeping of the version 2 packet header. Drops packets
+ * that are duplicates or older than the newest one seen, since a command
+ * that arrives after a later one (a key press overtaken by its release)
+ * would leave the host in the wrong state. Also counts losses and keeps
+ * the interarrival jitter estimate of RFC 3550 from the send timestamps.
+ */
+class SequenceTracker {
+	private static final int WINDOW = 64;
+
+	private int session;
+	private boolean started = false;
+	private int highest;
+	// Bit n set: highest - n has been received
+	private long seen;
+
+	private long received = 0;
+	private long duplicates = 0;
+	private long stale = 0;
+	private long lost = 0;
+
+	private int lastTransit;
+	private double jitter = 0;
+
+	/**
+	 * @param arrival
+	 *            local receive time, see {@link Protocol#micros()}
+	 * @return true if the packet should be processed
+	 */
+	public boolean accept(int session, int sequence, int sent, int arrival) {
+		if (!started || session != this.session) {
+			reset(session, sequence);
+			updateJitter(sent, arrival, true);
+			received++;
+			return true;
+		}
+
+		int diff = sequence - highest;
+		if (diff > 0) {
+			seen = diff >= WINDOW ? 1 : (seen << diff) | 1;
+			lost += diff - 1;
+			highest = sequence;
+			updateJitter(sent, arrival, false);
+			received++;
+			return true;
+		}
+
+		int age = -diff;
+		if (age < WINDOW && (seen & (1L << age)) != 0) {
+			duplicates++;
+		} else {
+			// It did arrive after all, just too late to be used
+			if (age < WINDOW) {
+				seen |= 1L << age;
+				lost--;
+			}
+			stale++;
+		}
+		return false;
+	}
+
+	private void reset(int session, int sequence) {
+		this.session = session;
+		started = true;
+		highest = sequence;
+		seen = 1;
+	}
+
+	private void updateJitter(int sent, int arrival, boolean first) {
+		int transit = arrival - sent;
+		if (!first) {
+			int d = transit - lastTransit;
+			if (d < 0)
+				d = -d;
+			jitter += (d - jitter) / 16;
+		}
+		lastTransit = transit;
+	}
+
+	public int getSession() {
+		return session;
+	}
+
+	public long getReceived() {
+		return received;
+	}
+
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	public long getStale() {
+		return stale;
+	}
+
+	public long getLost() {
+		return lost;
+	}
+
+	/**
+	 * @return the one-way jitter estimate in microseconds
+	 */
+	public double getJitter() {
+		return jitter;
+	}
+}
@@ -0,0 +1,60 @@
+package com.linuxfunkar.mousekeysremote;
+
+/**
+ * What a server announced about itself in its last ping response. The
+ * current instance is replaced by {@link PingService} and read by the
+ * sender thread, so instances are immutable.
+ */
+final class ServerInfo {
+	private static final ServerInfo LEGACY = new ServerInfo("", 0,
+			Protocol.VERSION_1, 0);
+
+	private static volatile ServerInfo current = LEGACY;
+
+	private final String host;
+	private final int port;
+	private final int version;
+	private final int capabilities;
+
+	public ServerInfo(String host, int port, int version, int capabilities) {
+		this.host = host;
+		this.port = port;
+		this.version = version;
+		this.capabilities = capabilities;
+	}
+
+	public static void update(ServerInfo info) {
+		current = info;
+	}
+
+	/**
+	 * @return what is known about the given server, or plain version 1 if
+	 *         it hasn't answered a ping yet
+	 */
+	public static ServerInfo get(String host, int port) {
+		ServerInfo info = current;
+		if (info.port == port && info.host.equals(host))
+			return info;
+		return LEGACY;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public int getCapabilities() {
+		return capabilities;
+	}
+
+	public boolean hasCapability(int capability) {
+		return (capabilities & capability) != 0;
+	}
+}
@@ -0,0 +1,144 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Authenticated encryption of the version 2 packets of one session, used
+ * with servers that announce {@link Protocol#CAP_AEAD}. AES-128 in counter
+ * mode with an HMAC-SHA256 tag over header and ciphertext
+ * (encrypt-then-MAC), since GCM and ChaCha20-Poly1305 are not available on
+ * every supported Android version.
+ *
+ * A sealed datagram is binary, not Base64: the {@link #SUITE} byte, the
+ * session id, the 32-bit packet counter, the ciphertext and a 16 byte tag.
+ * The suite byte is not a Base64 character, so servers can tell sealed
+ * datagrams from the legacy ones by the first byte. Both keys are derived
+ * from the password and the session id, and the counter together with the
+ * direction makes the nonce, so it is never reused within a session. Not
+ * thread safe.
+ */
+final class SessionCipher {
+	/** First byte of a sealed datagram */
+	public static final int SUITE = 0x01;
+	/** Bytes a sealed datagram is longer than the packet */
+	public static final int OVERHEAD = 1 + 4 + 4 + 16;
+
+	private static final int HEADER = 9;
+	private static final int TAG = 16;
+
+	private final int session;
+	private final int sendDirection;
+	private final Cipher cipher;
+	private final Mac mac;
+	private final SecretKeySpec key;
+	private final byte[] iv = new byte[16];
+	private final byte[] tag = new byte[32];
+	private int counter = 0;
+
+	/**
+	 * @param master
+	 *            the key from {@link KeyProvider#getSessionCipher}
+	 * @param client
+	 *            whether this end is the client
+	 */
+	SessionCipher(byte[] master, int session, boolean client)
+			throws GeneralSecurityException {
+		this.session = session;
+		sendDirection = client ? 0 : 1;
+		Mac kdf = Mac.getInstance("HmacSHA256");
+		kdf.init(new SecretKeySpec(master, "HmacSHA256"));
+		key = new SecretKeySpec(derive(kdf, 'e'), 0, 16, "AES");
+		mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(derive(kdf, 'm'), "HmacSHA256"));
+		cipher = Cipher.getInstance("AES/CTR/NoPadding");
+	}
+
+	private byte[] derive(Mac kdf, char label) {
+		kdf.update((byte) label);
+		kdf.update((byte) (session >>> 24));
+		kdf.update((byte) (session >>> 16));
+		kdf.update((byte) (session >>> 8));
+		kdf.update((byte) session);
+		return kdf.doFinal();
+	}
+
+	public int getSession() {
+		return session;
+	}
+
+	/**
+	 * @return the session id of a sealed datagram, which selects the
+	 *         cipher to open it with
+	 */
+	public static int peekSession(byte[] buf, int offset) {
+		return readInt(buf, offset + 1);
+	}
+
+	private static int readInt(byte[] buf, int pos) {
+		return (buf[pos] & 0xff) << 24 | (buf[pos + 1] & 0xff) << 16
+				| (buf[pos + 2] & 0xff) << 8 | (buf[pos + 3] & 0xff);
+	}
+
+	public static boolean isSealed(byte[] buf, int offset, int length) {
+		return length >= OVERHEAD && buf[offset] == SUITE;
+	}
+
+	/**
+	 * Encrypts a packet into out, which needs room for
+	 * {@link #OVERHEAD} more bytes.
+	 *
+	 * @return the length of the sealed datagram
+	 */
+	public int seal(byte[] in, int offset, int length, byte[] out)
+			throws GeneralSecurityException {
+		int c = ++counter;
+		out[0] = SUITE;
+		Protocol.putInt(out, 1, session);
+		Protocol.putInt(out, 5, c);
+		init(Cipher.ENCRYPT_MODE, sendDirection, c);
+		cipher.doFinal(in, offset, length, out, HEADER);
+		mac.update(out, 0, HEADER + length);
+		mac.doFinal(tag, 0);
+		System.arraycopy(tag, 0, out, HEADER + length, TAG);
+		return HEADER + length + TAG;
+	}
+
+	/**
+	 * Checks and decrypts a datagram sealed by the other end.
+	 *
+	 * @return the length of the packet in out, or -1 if the datagram is not
+	 *         for this session or has been tampered with
+	 */
+	public int open(byte[] in, int offset, int length, byte[] out)
+			throws GeneralSecurityException {
+		if (!isSealed(in, offset, length) || peekSession(in, offset) != session)
+			return -1;
+		int size = length - OVERHEAD;
+		mac.update(in, offset, HEADER + size);
+		mac.doFinal(tag, 0);
+		int diff = 0;
+		for (int i = 0; i < TAG; i++)
+			diff |= tag[i] ^ in[offset + HEADER + size + i];
+		if (diff != 0)
+			return -1;
+		int c = readInt(in, offset + 5);
+		init(Cipher.DECRYPT_MODE, 1 - sendDirection, c);
+		cipher.doFinal(in, offset + HEADER, size, out, 0);
+		return size;
+	}
+
+	private void init(int mode, int direction, int c)
+			throws GeneralSecurityException {
+		// session | direction | 0 | counter | block counter
+		Protocol.putInt(iv, 0, session);
+		iv[4] = (byte) direction;
+		Protocol.putInt(iv, 8, c);
+		Protocol.putInt(iv, 12, 0);
+		cipher.init(mode, key, new IvParameterSpec(iv));
+	}
+}
@@ -0,0 +1,187 @@
+package com.linuxfunkar.mousekeysremote;
+
+import android.view.MotionEvent;
+
+/**
+ * One-finger pointer movement on the mouse pad. GestureDetector's onScroll
+ * only reports the newest position of a batched move event; here every
+ * historical sample is handed to the {@link OnMotionListener} in order,
+ * with its own time, in a loop over primitives that allocates nothing.
+ *
+ * Movement within the touch slop of the first touch is held back so taps
+ * don't nudge the pointer, and released in full once the finger leaves
+ * it.
+ *
+ * Two fingers moving together scroll by the travel of the point between
+ * them. A two-finger gesture whose span changes more than its midpoint
+ * moves is a pinch and left to the zoom detector, as are events with more
+ * fingers.
+ */
+class TouchpadProcessor {
+	public interface OnMotionListener {
+		/**
+		 * @param dt
+		 *            milliseconds since the previous sample
+		 */
+		void onMotion(float dx, float dy, long dt);
+
+		/**
+		 * Two-finger scroll, in pixels the fingers moved.
+		 */
+		void onScroll(float dx, float dy);
+	}
+
+	private static final int TWO_FINGERS_NONE = 0;
+	private static final int TWO_FINGERS_UNDECIDED = 1;
+	private static final int TWO_FINGERS_SCROLL = 2;
+	private static final int TWO_FINGERS_PINCH = 3;
+
+	private final OnMotionListener listener;
+	private final float slopSquare;
+
+	private boolean tracking = false;
+	private boolean dragging = false;
+	private float downX;
+	private float downY;
+	private float lastX;
+	private float lastY;
+	private long lastTime;
+
+	private int twoFingers = TWO_FINGERS_NONE;
+	private float startMidX;
+	private float startMidY;
+	private float startSpan;
+	private float midX;
+	private float midY;
+
+	/**
+	 * @param touchSlop
+	 *            distance in pixels a touch may wander before it moves the
+	 *            pointer
+	 */
+	public TouchpadProcessor(float touchSlop, OnMotionListener listener) {
+		slopSquare = touchSlop * touchSlop;
+		this.listener = listener;
+	}
+
+	/**
+	 * @return true if the event moved or may move the pointer, or scrolled
+	 */
+	public boolean onTouchEvent(MotionEvent event) {
+		switch (event.getAction() & MotionEvent.ACTION_MASK) {
+			case MotionEvent.ACTION_DOWN:
+				dragging = false;
+				twoFingers = TWO_FINGERS_NONE;
+				start(event.getX(), event.getY(), event.getEventTime());
+				return true;
+			case MotionEvent.ACTION_MOVE:
+				if (event.getPointerCount() == 2
+						&& twoFingers != TWO_FINGERS_NONE)
+					return twoFingerMove(event);
+				if (event.getPointerCount() != 1) {
+					tracking = false;
+					return false;
+				}
+				if (!tracking) {
+					// A second finger has been lifted, go on from here
+					start(event.getX(), event.getY(), event.getEventTime());
+					return true;
+				}
+				int history = event.getHistorySize();
+				for (int h = 0; h < history; h++)
+					sample(event.getHistoricalX(h), event.getHistoricalY(h),
+							event.getHistoricalEventTime(h));
+				sample(event.getX(), event.getY(), event.getEventTime());
+				return true;
+			case MotionEvent.ACTION_POINTER_DOWN:
+				tracking = false;
+				if (event.getPointerCount() == 2) {
+					twoFingers = TWO_FINGERS_UNDECIDED;
+					startMidX = midX = (event.getX(0) + event.getX(1)) / 2;
+					startMidY = midY = (event.getY(0) + event.getY(1)) / 2;
+					startSpan = span(event.getX(0) - event.getX(1),
+							event.getY(0) - event.getY(1));
+				} else {
+					twoFingers = TWO_FINGERS_NONE;
+				}
+				return false;
+			case MotionEvent.ACTION_POINTER_UP:
+			case MotionEvent.ACTION_UP:
+			case MotionEvent.ACTION_CANCEL:
+				tracking = false;
+				twoFingers = TWO_FINGERS_NONE;
+				return false;
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether two fingers are scrolling, so the zoom detector should
+	 *         keep out
+	 */
+	public boolean isScrolling() {
+		return twoFingers == TWO_FINGERS_SCROLL;
+	}
+
+	private boolean twoFingerMove(MotionEvent event) {
+		if (twoFingers == TWO_FINGERS_PINCH)
+			return false;
+		int history = event.getHistorySize();
+		for (int h = 0; h < history; h++)
+			twoFingerSample(event.getHistoricalX(0, h),
+					event.getHistoricalY(0, h), event.getHistoricalX(1, h),
+					event.getHistoricalY(1, h));
+		twoFingerSample(event.getX(0), event.getY(0), event.getX(1),
+				event.getY(1));
+		return twoFingers == TWO_FINGERS_SCROLL;
+	}
+
+	private void twoFingerSample(float x0, float y0, float x1, float y1) {
+		float x = (x0 + x1) / 2;
+		float y = (y0 + y1) / 2;
+		if (twoFingers == TWO_FINGERS_UNDECIDED) {
+			float moved = span(x - startMidX, y - startMidY);
+			float stretched = Math.abs(span(x0 - x1, y0 - y1) - startSpan);
+			if (moved * moved < slopSquare
+					&& stretched * stretched < slopSquare)
+				return;
+			if (stretched > moved) {
+				twoFingers = TWO_FINGERS_PINCH;
+				return;
+			}
+			// Scrolling starts from here, the slop isn't sent
+			twoFingers = TWO_FINGERS_SCROLL;
+		} else {
+			listener.onScroll(x - midX, y - midY);
+		}
+		midX = x;
+		midY = y;
+	}
+
+	private static float span(float dx, float dy) {
+		return (float) Math.sqrt(dx * dx + dy * dy);
+	}
+
+	private void start(float x, float y, long time) {
+		tracking = true;
+		downX = x;
+		downY = y;
+		lastX = x;
+		lastY = y;
+		lastTime = time;
+	}
+
+	private void sample(float x, float y, long time) {
+		if (!dragging) {
+			float sx = x - downX;
+			float sy = y - downY;
+			if (sx * sx + sy * sy < slopSquare)
+				return;
+			dragging = true;
+		}
+		listener.onMotion(x - lastX, y - lastY, time - lastTime);
+		lastX = x;
+		lastY = y;
+		lastTime = time;
+	}
+}
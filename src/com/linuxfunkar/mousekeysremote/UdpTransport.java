@@ -0,0 +1,153 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Long-lived UDP connection to the server. One connected channel is kept
+ * for the lifetime of a host/port setting; the host name is resolved on a
+ * background thread when the transport is created and refreshed there
+ * periodically.
+ */
+class UdpTransport {
+	private static final long RESOLVE_INTERVAL = 60000;
+	private static final long RESOLVE_RETRY = 5000;
+
+	private final String host;
+	private final int port;
+	private final DatagramChannel channel;
+	private final Thread resolver;
+	private final Object lock = new Object();
+
+	private volatile InetSocketAddress address;
+	private volatile boolean closed = false;
+
+	public UdpTransport(String host, int port) throws IOException {
+		this.host = host;
+		this.port = port;
+
+		channel = DatagramChannel.open();
+		// Replies are polled by the sender thread between sends
+		channel.configureBlocking(false);
+
+		resolver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				refresh();
+			}
+		}, "UdpTransport resolver");
+		resolver.setDaemon(true);
+		resolver.start();
+	}
+
+	public boolean isFor(String host, int port) {
+		return this.host.equals(host) && this.port == port;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return the version and capabilities the server announced in its
+	 *         last ping response
+	 */
+	public ServerInfo getServerInfo() {
+		return ServerInfo.get(host, port);
+	}
+
+	public boolean isResolved() {
+		return address != null;
+	}
+
+	/**
+	 * Waits until the host has been resolved for the first time.
+	 *
+	 * @return false if it was not resolved within the timeout
+	 */
+	public boolean awaitResolved(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		synchronized (lock) {
+			while (address == null && !closed) {
+				long left = end - System.currentTimeMillis();
+				if (left <= 0)
+					return false;
+				lock.wait(left);
+			}
+		}
+		return address != null;
+	}
+
+	/**
+	 * Sends one datagram. Returns false if the host has not been resolved
+	 * yet or the socket buffer is full and the datagram was dropped.
+	 */
+	public boolean send(byte[] data, int offset, int length)
+			throws IOException {
+		if (address == null || closed)
+			return false;
+		return channel.write(ByteBuffer.wrap(data, offset, length)) > 0;
+	}
+
+	/**
+	 * Reads one datagram from the server if there is one waiting.
+	 *
+	 * @return the number of bytes read, 0 if there was nothing to read
+	 */
+	public int receive(ByteBuffer dst) throws IOException {
+		if (address == null || closed)
+			return 0;
+		return channel.read(dst);
+	}
+
+	public void close() {
+		closed = true;
+		resolver.interrupt();
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+		try {
+			channel.close();
+		} catch (IOException ex) {
+		}
+	}
+
+	private void resolve() throws IOException {
+		InetAddress resolved = InetAddress.getByName(host);
+		InetSocketAddress current = address;
+		if (current != null && resolved.equals(current.getAddress()))
+			return;
+
+		InetSocketAddress next = new InetSocketAddress(resolved, port);
+		synchronized (lock) {
+			if (channel.isConnected())
+				channel.disconnect();
+			channel.connect(next);
+			address = next;
+			lock.notifyAll();
+		}
+	}
+
+	private void refresh() {
+		while (!closed) {
+			try {
+				resolve();
+			} catch (IOException ex) {
+				// Keep the last good address and try again later
+			}
+			try {
+				Thread.sleep(address == null ? RESOLVE_RETRY
+						: RESOLVE_INTERVAL);
+			} catch (InterruptedException ex) {
+				return;
+			}
+		}
+	}
+}
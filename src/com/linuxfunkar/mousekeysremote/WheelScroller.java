@@ -0,0 +1,105 @@
+package com.linuxfunkar.mousekeysremote;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Kinetic scrolling for the mouse wheel panel. After a fling the wheel
+ * keeps turning with exponentially decaying speed until it is slow enough
+ * to stop or the panel is touched again. Each tick hands on at most one
+ * scroll, in 1/{@link Protocol#SCROLL_DETENT} of a wheel step, and the
+ * fractions of a unit are carried over to the next tick.
+ *
+ * The ticks run on the UI thread's handler rather than a timer thread,
+ * because commands must only be queued from the sender's producer thread.
+ */
+class WheelScroller {
+	public static final long TICK = 16; // ms
+
+	// Time constant of the decay, as Android's own fling scrolling
+	private static final float TIME_CONSTANT = 325; // ms
+	private static final float MIN_VELOCITY = 2; // steps per second
+
+	public interface OnScrollListener {
+		/**
+		 * @param units
+		 *            1/{@link Protocol#SCROLL_DETENT} of a wheel step
+		 */
+		void onScroll(int units);
+	}
+
+	private final Handler handler;
+	private final OnScrollListener listener;
+
+	private float velocity = 0; // steps per second
+	private float remainder = 0;
+	private long lastTick;
+	private boolean running = false;
+
+	private final Runnable tickTask = new Runnable() {
+		@Override
+		public void run() {
+			tick();
+		}
+	};
+
+	public WheelScroller(Handler handler, OnScrollListener listener) {
+		this.handler = handler;
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts turning the wheel. Must be called on the handler's thread.
+	 *
+	 * @param stepsPerSecond
+	 *            initial speed, positive scrolls up like positive wheel
+	 *            commands
+	 */
+	public void fling(float stepsPerSecond) {
+		stop();
+		if (Math.abs(stepsPerSecond) < MIN_VELOCITY)
+			return;
+		velocity = stepsPerSecond;
+		lastTick = SystemClock.uptimeMillis();
+		running = true;
+		handler.postDelayed(tickTask, TICK);
+	}
+
+	/**
+	 * Stops the wheel at once, dropping any fraction of a unit.
+	 */
+	public void stop() {
+		if (running) {
+			handler.removeCallbacks(tickTask);
+			running = false;
+		}
+		velocity = 0;
+		remainder = 0;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	private void tick() {
+		long now = SystemClock.uptimeMillis();
+		long dt = now - lastTick;
+		lastTick = now;
+
+		float units = velocity * Protocol.SCROLL_DETENT * dt / 1000
+				+ remainder;
+		int whole = (int) units;
+		remainder = units - whole;
+		if (whole != 0)
+			listener.onScroll(whole);
+
+		velocity *= (float) Math.exp(-dt / TIME_CONSTANT);
+		if (Math.abs(velocity) < MIN_VELOCITY) {
+			running = false;
+			velocity = 0;
+			remainder = 0;
+		} else {
+			handler.postDelayed(tickTask, TICK);
+		}
+	}
+}
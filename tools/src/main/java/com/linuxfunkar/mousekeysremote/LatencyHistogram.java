@@ -0,0 +1,70 @@
+package com.linuxfunkar.mousekeysremote;
+
+/**
+ * Fixed size histogram of latencies in microseconds for percentiles over
+ * long runs. Values below 128 us have their own buckets, larger ones share
+ * 64 buckets per power of two, so percentiles are within 1/64 of the true
+ * value and recording never allocates.
+ */
+final class LatencyHistogram {
+	private static final int SUB_BITS = 6;
+	private static final int SUB = 1 << SUB_BITS;
+
+	private final long[] counts = new long[index(Integer.MAX_VALUE) + 1];
+	private long total = 0;
+	private long max = 0;
+
+	private static int index(long micros) {
+		if (micros < 2 * SUB)
+			return (int) micros;
+		int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+		return shift * SUB + (int) (micros >>> shift);
+	}
+
+	/**
+	 * @return the smallest value of a bucket
+	 */
+	private static long value(int index) {
+		if (index < 2 * SUB)
+			return index;
+		int shift = index / SUB - 1;
+		return (long) (index - shift * SUB) << shift;
+	}
+
+	public synchronized void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+		else if (micros > Integer.MAX_VALUE)
+			micros = Integer.MAX_VALUE;
+		counts[index(micros)]++;
+		total++;
+		max = Math.max(max, micros);
+	}
+
+	public synchronized long getCount() {
+		return total;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * @param percentile
+	 *            0 to 100
+	 * @return the latency in microseconds that the given share of the
+	 *         values did not exceed, 0 if nothing was recorded
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= Math.max(rank, 1))
+				return Math.min(value(i), max);
+		}
+		return max;
+	}
+}
@@ -0,0 +1,299 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates several phones driving one media PC. Each virtual client has
+ * its own password, {@link CommandSender}, socket and producer thread and
+ * mixes three synthetic workloads at configurable rates: mouse drags (a
+ * button press, a circle of moves and the release), a sensor stream of
+ * small noisy moves and key chords such as Ctrl+Shift+letter.
+ *
+ * The clients talk to an in-process {@link ReferenceReceiver} that knows
+ * all the passwords, so the report shows what arrived rather than what was
+ * sent: receiver throughput, lost datagrams and motion packets, and the
+ * p50/p99 latency from the send timestamp of each packet to its decoding,
+ * which shares a clock with the sender here.
+ */
+public class LoadGenerator {
+	private static final int QUEUE_SIZE = 256;
+
+	// Modifiers and letters as the app sends them
+	private static final int CTRL = 1200;
+	private static final int SHIFT = 1202;
+	private static final int ALT = 1203;
+	private static final int LETTER_A = 97;
+
+	// Moves per drag and the radius of its circle in pixels
+	private static final int DRAG_MOVES = 60;
+	private static final double DRAG_RADIUS = 40;
+
+	private static final AtomicLong issued = new AtomicLong();
+
+	/**
+	 * One phone: a producer thread that queues commands on its own sender.
+	 */
+	private static final class Client implements Runnable {
+		private final CommandSender sender;
+		private final Random random;
+		private final long dragPeriod;
+		private final long sensorPeriod;
+		private final long chordPeriod;
+		private final long end;
+		private final int[] chord = new int[3];
+
+		private int dragStep = -1;
+		private double dragX;
+		private double dragY;
+
+		Client(CommandSender sender, long seed, double dragRate,
+				double sensorRate, double chordRate, long end) {
+			this.sender = sender;
+			random = new Random(seed);
+			dragPeriod = period(dragRate);
+			sensorPeriod = period(sensorRate);
+			chordPeriod = period(chordRate);
+			this.end = end;
+		}
+
+		private static long period(double rate) {
+			return rate > 0 ? (long) (1e9 / rate) : Long.MAX_VALUE;
+		}
+
+		@Override
+		public void run() {
+			long now = System.nanoTime();
+			// Random phases, so clients don't send in lockstep
+			long nextDrag = now + phase(dragPeriod);
+			long nextSensor = now + phase(sensorPeriod);
+			long nextChord = now + phase(chordPeriod);
+			while ((now = System.nanoTime()) < end) {
+				if (now >= nextDrag) {
+					drag();
+					nextDrag += dragPeriod;
+				}
+				if (now >= nextSensor) {
+					sensor();
+					nextSensor += sensorPeriod;
+				}
+				if (now >= nextChord) {
+					chord();
+					nextChord += chordPeriod;
+				}
+				long next = Math.min(end, Math.min(nextDrag,
+						Math.min(nextSensor, nextChord)));
+				LockSupport.parkNanos(next - System.nanoTime());
+			}
+			if (dragStep >= 0)
+				send(sender.sendText("MLR"));
+		}
+
+		private long phase(long period) {
+			return period == Long.MAX_VALUE ? 0 : (long) (random.nextDouble()
+					* period);
+		}
+
+		private void send(boolean queued) {
+			if (queued)
+				issued.incrementAndGet();
+		}
+
+		/**
+		 * One step of a drag along a circle, rounded like a touch pad
+		 * would so no motion is lost.
+		 */
+		private void drag() {
+			if (dragStep < 0) {
+				send(sender.sendText("MLC"));
+				dragStep = 0;
+				dragX = 0;
+				dragY = 0;
+				return;
+			}
+			double angle = 2 * Math.PI * ++dragStep / DRAG_MOVES;
+			double x = DRAG_RADIUS * Math.sin(angle);
+			double y = DRAG_RADIUS * (1 - Math.cos(angle));
+			int dx = (int) Math.round(x - dragX);
+			int dy = (int) Math.round(y - dragY);
+			dragX += dx;
+			dragY += dy;
+			send(sender.sendMove(dx, dy));
+			if (dragStep == DRAG_MOVES) {
+				send(sender.sendText("MLR"));
+				dragStep = -1;
+			}
+		}
+
+		/**
+		 * A tilt sample: a steady drift plus noise.
+		 */
+		private void sensor() {
+			int dx = (int) Math.round(1 + random.nextGaussian() * 2);
+			int dy = (int) Math.round(random.nextGaussian() * 2);
+			if (dx != 0 || dy != 0)
+				send(sender.sendMove(dx, dy));
+		}
+
+		/**
+		 * Presses one or two modifiers and a letter, then releases them in
+		 * reverse order.
+		 */
+		private void chord() {
+			int count = 0;
+			chord[count++] = CTRL;
+			if (random.nextBoolean())
+				chord[count++] = random.nextBoolean() ? SHIFT : ALT;
+			chord[count++] = LETTER_A + random.nextInt(26);
+			for (int i = 0; i < count; i++)
+				send(sender.sendKey(true, chord[i]));
+			for (int i = count - 1; i >= 0; i--)
+				send(sender.sendKey(false, chord[i]));
+		}
+	}
+
+	/**
+	 * Counts what the receiver decoded.
+	 */
+	private static final class CountingSink implements
+			ReferenceReceiver.EventSink {
+		volatile long keys;
+		volatile long moves;
+		volatile long other;
+
+		@Override
+		public void keyPress(int code) {
+			keys++;
+		}
+
+		@Override
+		public void keyRelease(int code) {
+			keys++;
+		}
+
+		@Override
+		public void move(int dx, int dy) {
+			moves++;
+		}
+
+		@Override
+		public void wheel(int steps) {
+			other++;
+		}
+
+		@Override
+		public void zoom(int diff) {
+			other++;
+		}
+
+		@Override
+		public void scroll(int dx, int dy) {
+			other++;
+		}
+
+		@Override
+		public void command(String command) {
+			other++;
+		}
+	}
+
+	/**
+	 * Usage: LoadGenerator [clients] [seconds] [drag Hz] [sensor Hz]
+	 * [chords/s]
+	 *
+	 * The defaults are 4 clients for 10 s, each with 120 drag moves, 50
+	 * sensor samples and 2 chords a second.
+	 */
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 10;
+		double dragRate = args.length > 2 ? Double.parseDouble(args[2]) : 120;
+		double sensorRate = args.length > 3 ? Double.parseDouble(args[3])
+				: 50;
+		double chordRate = args.length > 4 ? Double.parseDouble(args[4]) : 2;
+
+		String[] passwords = new String[clients];
+		for (int i = 0; i < clients; i++)
+			passwords[i] = "client" + i;
+		CountingSink sink = new CountingSink();
+		ReferenceReceiver receiver = new ReferenceReceiver(0, passwords,
+				ReferenceReceiver.ALL_CAPABILITIES, sink);
+		receiver.start();
+		String host = "127.0.0.1";
+		int port = receiver.getPort();
+
+		KeyProvider[] keys = new KeyProvider[clients];
+		for (int i = 0; i < clients; i++) {
+			keys[i] = KeyProvider.get(passwords[i]);
+			keys[i].getSessionCipher(0, true);
+		}
+		ServerInfo info = Replayer.ping(host, port, keys[0]);
+		System.out.println(clients + " clients, server version "
+				+ info.getVersion() + ", capabilities "
+				+ info.getCapabilities());
+
+		CommandSender[] senders = new CommandSender[clients];
+		UdpTransport[] transports = new UdpTransport[clients];
+		for (int i = 0; i < clients; i++) {
+			senders[i] = new CommandSender(QUEUE_SIZE, new String[0]);
+			transports[i] = new UdpTransport(host, port);
+			senders[i].setKeys(keys[i]);
+			senders[i].setTransport(transports[i]);
+			senders[i].start();
+			transports[i].awaitResolved(2000);
+		}
+
+		long start = System.nanoTime();
+		long end = start + (long) (seconds * 1e9);
+		Thread[] producers = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			producers[i] = new Thread(new Client(senders[i], i, dragRate,
+					sensorRate, chordRate, end), "Client" + i);
+			producers[i].start();
+		}
+		for (Thread producer : producers)
+			producer.join();
+
+		long sent = 0;
+		long dropped = 0;
+		long failed = 0;
+		long retransmits = 0;
+		long abandoned = 0;
+		for (int i = 0; i < clients; i++) {
+			senders[i].stop();
+			transports[i].close();
+			sent += senders[i].getSent();
+			dropped += senders[i].getDropped();
+			failed += senders[i].getFailed();
+			retransmits += senders[i].getRetransmits();
+			abandoned += senders[i].getAbandoned();
+		}
+		// Let the last datagrams arrive
+		Thread.sleep(100);
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		receiver.close();
+
+		long received = receiver.getDatagrams() - receiver.getPings();
+		long decoded = sink.keys + sink.moves + sink.other;
+		LatencyHistogram latency = receiver.getLatency();
+		System.out.printf("Issued %d commands, %d dropped by full queues%n",
+				issued.get(), dropped);
+		System.out.printf("Receiver: %d commands in %.3f s (%.0f/s): %d keys,"
+				+ " %d moves, %d other, %d rejected%n", decoded, elapsed,
+				decoded / elapsed, sink.keys, sink.moves, sink.other,
+				receiver.getRejected());
+		System.out.printf("Datagrams: %d sent, %d failed, %d received"
+				+ " (%.2f%% lost), %d retransmits, %d abandoned%n", sent,
+				failed, received, sent > 0 ? 100.0 * (sent - received) / sent
+						: 0.0, retransmits, abandoned);
+		System.out.printf("Motion packets: %d lost, %d duplicates, %d stale,"
+				+ " jitter %.0f us%n", receiver.getLost(),
+				receiver.getDuplicates(), receiver.getStale(),
+				receiver.getJitter());
+		System.out.printf("Latency: p50 %d us, p99 %d us, max %d us over %d"
+				+ " packets%n", latency.getPercentile(50),
+				latency.getPercentile(99), latency.getMax(),
+				latency.getCount());
+	}
+}
@@ -0,0 +1,685 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reference implementation of the server side of the protocol, for tests
+ * and benchmarks on a single machine. It answers pings and discovery
+ * probes, decrypts and
+ * decodes every command of both protocol versions and hands them to an
+ * {@link EventSink} instead of injecting input. Version 2 packets go
+ * through the same receiver side classes a real server would use:
+ * {@link SequenceTracker} for motion, {@link ReliableReceiver} with
+ * acknowledgements for keys, {@link KeyLeases} and {@link SessionCipher}.
+ *
+ * Unlike a real server it can accept several passwords at once, so that
+ * simulated clients each get their own key material. A session is bound to
+ * the first password its packets decrypt with.
+ *
+ * Idle sessions are forgotten, but not their ids. A session that comes back
+ * gets new state, and its cipher here would count from zero again, so its
+ * reliable packets are never acknowledged; the client is told to start a
+ * new session instead.
+ */
+public class ReferenceReceiver implements Runnable {
+	public static final int DEFAULT_PORT = 5555;
+
+	/** What the receiver announces in its pong by default */
+	public static final int ALL_CAPABILITIES = Protocol.CAP_RELIABLE
+			| Protocol.CAP_LEASE | Protocol.CAP_AEAD | Protocol.CAP_SCROLL;
+
+	// Sessions not heard from for this long are forgotten
+	private static final long SESSION_TIMEOUT = 60000000000L; // 60 s
+	private static final int TICK = 50; // ms
+	// How often main prints the link statistics
+	private static final long REPORT_INTERVAL = 10000; // ms
+
+	public interface EventSink {
+		void keyPress(int code);
+
+		void keyRelease(int code);
+
+		void move(int dx, int dy);
+
+		void wheel(int steps);
+
+		void zoom(int diff);
+
+		/**
+		 * Smooth scroll in 1/{@link Protocol#SCROLL_DETENT} of a wheel step,
+		 * positive right and up.
+		 */
+		void scroll(int dx, int dy);
+
+		/**
+		 * Any other command, such as "MLC" or "MMC".
+		 */
+		void command(String command);
+	}
+
+	/**
+	 * State of one client session.
+	 */
+	private final class Session implements ReliableReceiver.PacketHandler,
+			KeyLeases.LeaseListener {
+		final int id;
+		final SequenceTracker tracker = new SequenceTracker();
+		final ReliableReceiver reliable = new ReliableReceiver();
+		final KeyLeases leases = new KeyLeases();
+		KeyProvider keys;
+		SessionCipher cipher;
+		SocketAddress address;
+		long lastSeen;
+		// Forgotten before, so nothing may be sealed for it
+		final boolean retired;
+
+		Session(int id, boolean retired) {
+			this.id = id;
+			this.retired = retired;
+		}
+
+		@Override
+		public void onPacket(byte[] buf, int offset, int length) {
+			dispatch(this, buf, offset, length);
+		}
+
+		@Override
+		public void onExpired(int code) {
+			expiredKeys++;
+			sink.keyRelease(code);
+		}
+
+		@Override
+		public void onRestored(int code) {
+			restoredKeys++;
+			sink.keyPress(code);
+		}
+	}
+
+	private final DatagramSocket socket;
+	private final KeyProvider[] keys;
+	private final int capabilities;
+	private final EventSink sink;
+	private final Map<Integer, Session> sessions = new HashMap<Integer, Session>();
+	// Ids of the sessions forgotten for being idle
+	private final Set<Integer> retired = new HashSet<Integer>();
+
+	private final byte[] buf = new byte[2048];
+	private final byte[] plain = new byte[2048];
+	private final byte[] reply = new byte[Protocol.MAX_PAYLOAD
+			+ SessionCipher.OVERHEAD];
+	private final DatagramPacket packet = new DatagramPacket(buf, buf.length);
+	private final Protocol.Reader reader = new Protocol.Reader();
+	private final Protocol.Reader frames = new Protocol.Reader();
+	private final Protocol.Reader frame = new Protocol.Reader();
+	private final int[] leaseCodes = new int[HeldKeys.MAX_KEYS];
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private long lastTick;
+	// Motion packets lost, duplicated and late in forgotten sessions
+	private long retiredLost = 0;
+	private long retiredDuplicates = 0;
+	private long retiredStale = 0;
+
+	private volatile Thread thread;
+	private volatile boolean running = true;
+
+	private volatile long datagrams = 0;
+	private volatile long commands = 0;
+	private volatile long rejected = 0;
+	private volatile long pings = 0;
+	private volatile long expiredKeys = 0;
+	private volatile long restoredKeys = 0;
+	private volatile long resets = 0;
+	private volatile long lost = 0;
+	private volatile long duplicates = 0;
+	private volatile long stale = 0;
+	private volatile double jitter = 0;
+
+	/**
+	 * @param port
+	 *            UDP port to listen on, 0 for any free port
+	 */
+	public ReferenceReceiver(int port, String password, int capabilities,
+			EventSink sink) throws IOException, GeneralSecurityException {
+		this(port, new String[] { password }, capabilities, sink);
+	}
+
+	/**
+	 * @param passwords
+	 *            the passwords clients may use, tried in order
+	 */
+	public ReferenceReceiver(int port, String[] passwords, int capabilities,
+			EventSink sink) throws IOException, GeneralSecurityException {
+		socket = new DatagramSocket(new InetSocketAddress(port));
+		socket.setSoTimeout(TICK);
+		keys = new KeyProvider[passwords.length];
+		for (int i = 0; i < passwords.length; i++) {
+			keys[i] = KeyProvider.get(passwords[i]);
+			// Derive the session key, which also signs pongs, now and not
+			// while datagrams queue up
+			keys[i].getReplyAuthenticator();
+		}
+		this.capabilities = capabilities;
+		this.sink = sink;
+	}
+
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		thread = new Thread(this, "ReferenceReceiver");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void close() {
+		running = false;
+		Thread t = thread;
+		if (t != null) {
+			try {
+				t.join(1000);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			thread = null;
+		}
+		socket.close();
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				packet.setData(buf, 0, buf.length);
+				socket.receive(packet);
+				datagrams++;
+				receive(packet.getSocketAddress(), packet.getLength());
+			} catch (SocketTimeoutException ex) {
+			} catch (IOException ex) {
+				if (running)
+					rejected++;
+			}
+			long now = System.nanoTime();
+			if (now - lastTick >= TICK * 1000000L) {
+				lastTick = now;
+				tick(now);
+			}
+		}
+		countSequences();
+	}
+
+	private void receive(SocketAddress from, int length) throws IOException {
+		try {
+			if (SessionCipher.isSealed(buf, 0, length)) {
+				Session session = session(SessionCipher.peekSession(buf, 0),
+						from);
+				int size = session.cipher == null ? openFirst(session, length)
+						: session.cipher.open(buf, 0, length, plain);
+				if (size < 0)
+					rejected++;
+				else
+					packet(plain, size, from, session.keys, true);
+				return;
+			}
+
+			for (KeyProvider k : keys) {
+				byte[] msg;
+				try {
+					msg = k.getSecurity().decrypt(buf, 0, length);
+				} catch (GeneralSecurityException ex) {
+					// Bad padding, try the next password
+					continue;
+				}
+				if (msg.length > 0 && msg[0] == Protocol.VERSION_2) {
+					packet(msg, msg.length, from, k, false);
+					return;
+				}
+				if (keys.length == 1 || isText(msg)) {
+					text(new String(msg, "UTF-8"), from, k);
+					return;
+				}
+			}
+			rejected++;
+		} catch (GeneralSecurityException ex) {
+			rejected++;
+		} catch (IllegalArgumentException ex) {
+			// Not Base64
+			rejected++;
+		} catch (ArrayIndexOutOfBoundsException ex) {
+			// Truncated packet
+			rejected++;
+		}
+	}
+
+	/**
+	 * Opens the first datagram of a sealed session with each password in
+	 * turn and binds the session to the one whose tag matches.
+	 *
+	 * @return the length of the packet in plain, or -1
+	 */
+	private int openFirst(Session session, int length)
+			throws GeneralSecurityException {
+		for (KeyProvider k : keys) {
+			SessionCipher cipher = k.getSessionCipher(session.id, false);
+			int size = cipher.open(buf, 0, length, plain);
+			if (size >= 0) {
+				session.keys = k;
+				session.cipher = cipher;
+				return size;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Tells a command decrypted with a wrong password, which passes the
+	 * padding check now and then, from real text.
+	 */
+	private static boolean isText(byte[] msg) {
+		for (byte b : msg)
+			if (b < 0x20 || b > 0x7e)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Handles a version 1 datagram: one text command, a ping or a
+	 * discovery probe. The answers are signed with the key of the password
+	 * the datagram was encrypted with.
+	 */
+	private void text(String command, SocketAddress from, KeyProvider k)
+			throws IOException, GeneralSecurityException {
+		if (command.equals("ping")) {
+			pings++;
+			int length = Protocol.writePong(reply, capabilities,
+					k.getReplyAuthenticator());
+			socket.send(new DatagramPacket(reply, length, from));
+			return;
+		}
+		byte[] nonce = Discovery.parseProbe(command);
+		if (nonce != null) {
+			pings++;
+			int length = Discovery.writeReply(reply, Protocol.VERSION_2,
+					socket.getLocalPort(), capabilities, nonce,
+					k.getReplyAuthenticator());
+			socket.send(new DatagramPacket(reply, length, from));
+			return;
+		}
+		textCommand(command);
+	}
+
+	private void packet(byte[] data, int length, SocketAddress from,
+			KeyProvider k, boolean sealed) throws IOException,
+			GeneralSecurityException {
+		reader.reset(data, 0, length);
+		reader.readByte();
+		int flags = reader.readByte();
+		int id = reader.readInt();
+		int sent = reader.readInt();
+		int sequence = reader.readVarint();
+		Session session = session(id, from);
+		if (session.keys == null)
+			session.keys = k;
+		else if (session.keys != k) {
+			rejected++;
+			return;
+		}
+		int offset = reader.position();
+		int arrival = Protocol.micros();
+		latency.record(arrival - sent);
+
+		if ((flags & Protocol.FLAG_RELIABLE) != 0
+				&& (capabilities & Protocol.CAP_RELIABLE) != 0) {
+			if (session.retired)
+				reset(session);
+			else if (session.reliable.receive(id, sequence, data, offset, length
+					- offset, System.nanoTime(), session))
+				acknowledge(session, sealed);
+			else if (session.reliable.isLost())
+				reset(session);
+		} else if (session.tracker.accept(id, sequence, sent, arrival)) {
+			dispatch(session, data, offset, length - offset);
+		}
+	}
+
+	private void acknowledge(Session session, boolean sealed)
+			throws IOException, GeneralSecurityException {
+		int length = session.reliable.writeAck(plain);
+		if (sealed) {
+			length = session.cipher.seal(plain, 0, length, reply);
+			socket.send(new DatagramPacket(reply, length, session.address));
+		} else {
+			byte[] msg = session.keys.getSecurity().encrypt(plain, 0, length)
+					.getBytes("US-ASCII");
+			socket.send(new DatagramPacket(msg, msg.length, session.address));
+		}
+	}
+
+	/**
+	 * Tells the client to start a new session. The answer goes through the
+	 * legacy cipher: the session cipher here may be new for a session that
+	 * had sealed answers from an earlier one, and its counter would repeat
+	 * their nonces.
+	 */
+	private void reset(Session session) throws IOException,
+			GeneralSecurityException {
+		resets++;
+		int length = Protocol.writeReset(plain, session.id);
+		byte[] msg = session.keys.getSecurity().encrypt(plain, 0, length)
+				.getBytes("US-ASCII");
+		socket.send(new DatagramPacket(msg, msg.length, session.address));
+	}
+
+	/**
+	 * Decodes the frames of a version 2 packet.
+	 */
+	private void dispatch(Session session, byte[] data, int offset,
+			int length) {
+		frames.reset(data, offset, length);
+		while (frames.nextFrame(frame)) {
+			int op = frame.readByte();
+			switch (op) {
+				case Protocol.OP_KEY_PRESS: {
+					int code = frame.readVarint();
+					session.leases.press(code, System.nanoTime());
+					commands++;
+					sink.keyPress(code);
+					break;
+				}
+				case Protocol.OP_KEY_RELEASE: {
+					int code = frame.readVarint();
+					session.leases.release(code);
+					commands++;
+					sink.keyRelease(code);
+					break;
+				}
+				case Protocol.OP_MOVE:
+					commands++;
+					sink.move(frame.readSignedVarint(), frame.readSignedVarint());
+					break;
+				case Protocol.OP_WHEEL:
+					commands++;
+					sink.wheel(frame.readSignedVarint());
+					break;
+				case Protocol.OP_ZOOM:
+					commands++;
+					sink.zoom(frame.readSignedVarint());
+					break;
+				case Protocol.OP_SCROLL:
+					if ((capabilities & Protocol.CAP_SCROLL) == 0) {
+						rejected++;
+						break;
+					}
+					commands++;
+					sink.scroll(frame.readSignedVarint(),
+							frame.readSignedVarint());
+					break;
+				case Protocol.OP_TEXT:
+					textCommand(frame.readRemainingText());
+					break;
+				case Protocol.OP_LEASE: {
+					if ((capabilities & Protocol.CAP_LEASE) == 0)
+						break;
+					int millis = frame.readVarint();
+					int count = 0;
+					while (frame.hasRemaining() && count < leaseCodes.length)
+						leaseCodes[count++] = frame.readVarint();
+					session.leases.renew(millis, leaseCodes, count,
+							System.nanoTime(), session);
+					break;
+				}
+				default:
+					rejected++;
+			}
+		}
+	}
+
+	/**
+	 * Decodes a version 1 text command.
+	 */
+	private void textCommand(String command) {
+		try {
+			if (command.startsWith("KBP"))
+				sink.keyPress(Integer.parseInt(command.substring(3)));
+			else if (command.startsWith("KBR"))
+				sink.keyRelease(Integer.parseInt(command.substring(3)));
+			else if (command.startsWith("XMM"))
+				sink.move(Integer.parseInt(command.substring(3)), 0);
+			else if (command.startsWith("YMM"))
+				sink.move(0, Integer.parseInt(command.substring(3)));
+			else if (command.startsWith("MWS"))
+				sink.wheel(Integer.parseInt(command.substring(3)));
+			else if (command.startsWith("MPZ"))
+				sink.zoom(Integer.parseInt(command.substring(3)));
+			else
+				sink.command(command);
+			commands++;
+		} catch (RuntimeException ex) {
+			// Malformed number
+			rejected++;
+		}
+	}
+
+	private Session session(int id, SocketAddress from) {
+		Session session = sessions.get(id);
+		if (session == null) {
+			session = new Session(id, retired.contains(id));
+			sessions.put(id, session);
+		}
+		session.address = from;
+		session.lastSeen = System.nanoTime();
+		return session;
+	}
+
+	/**
+	 * Releases expired keys, skips stuck reliable gaps and forgets idle
+	 * sessions.
+	 */
+	private void tick(long now) {
+		Iterator<Session> it = sessions.values().iterator();
+		while (it.hasNext()) {
+			Session session = it.next();
+			session.leases.expire(now, session);
+			session.reliable.expire(now, session);
+			if (now - session.lastSeen > SESSION_TIMEOUT
+					&& session.leases.size() == 0) {
+				retiredLost += session.tracker.getLost();
+				retiredDuplicates += session.tracker.getDuplicates();
+				retiredStale += session.tracker.getStale();
+				retired.add(session.id);
+				it.remove();
+			}
+		}
+		countSequences();
+	}
+
+	/**
+	 * Sums up the sequence statistics of all sessions for the getters.
+	 */
+	private void countSequences() {
+		long totalLost = retiredLost;
+		long totalDuplicates = retiredDuplicates;
+		long totalStale = retiredStale;
+		double maxJitter = 0;
+		for (Session session : sessions.values()) {
+			SequenceTracker tracker = session.tracker;
+			totalLost += tracker.getLost();
+			totalDuplicates += tracker.getDuplicates();
+			totalStale += tracker.getStale();
+			maxJitter = Math.max(maxJitter, tracker.getJitter());
+		}
+		lost = totalLost;
+		duplicates = totalDuplicates;
+		stale = totalStale;
+		jitter = maxJitter;
+	}
+
+	public long getDatagrams() {
+		return datagrams;
+	}
+
+	/**
+	 * @return commands handed to the sink
+	 */
+	public long getCommands() {
+		return commands;
+	}
+
+	/**
+	 * @return datagrams and commands that could not be decrypted or decoded
+	 */
+	public long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * @return pings and discovery probes answered
+	 */
+	public long getPings() {
+		return pings;
+	}
+
+	/**
+	 * @return keys released because their lease ran out
+	 */
+	public long getExpiredKeys() {
+		return expiredKeys;
+	}
+
+	/**
+	 * @return keys pressed again after their lease ran out during an
+	 *         outage
+	 */
+	public long getRestoredKeys() {
+		return restoredKeys;
+	}
+
+	/**
+	 * @return sessions clients were told to start over, since their
+	 *         reliable lane began before this receiver knew them
+	 */
+	public long getResets() {
+		return resets;
+	}
+
+	/**
+	 * @return motion packets that never arrived, as of the last tick
+	 */
+	public long getLost() {
+		return lost;
+	}
+
+	/**
+	 * @return version 2 packets that arrived twice, as of the last tick
+	 */
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * @return version 2 packets dropped because a later one had already
+	 *         arrived, as of the last tick
+	 */
+	public long getStale() {
+		return stale;
+	}
+
+	/**
+	 * @return the highest one-way jitter of the live sessions in
+	 *         microseconds, as of the last tick
+	 */
+	public double getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * @return the time from sending to receiving of version 2 packets, by
+	 *         their send timestamps, which is only meaningful when both
+	 *         ends share a clock
+	 */
+	LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * Runs a receiver that prints the commands it gets, and the link
+	 * statistics every ten seconds while packets arrive.
+	 *
+	 * Usage: ReferenceReceiver [port] [password]
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_PORT;
+		String password = args.length > 1 ? args[1] : "";
+		ReferenceReceiver receiver = new ReferenceReceiver(port, password,
+				ALL_CAPABILITIES, new EventSink() {
+					@Override
+					public void keyPress(int code) {
+						System.out.println("key press " + code);
+					}
+
+					@Override
+					public void keyRelease(int code) {
+						System.out.println("key release " + code);
+					}
+
+					@Override
+					public void move(int dx, int dy) {
+						System.out.println("move " + dx + "," + dy);
+					}
+
+					@Override
+					public void wheel(int steps) {
+						System.out.println("wheel " + steps);
+					}
+
+					@Override
+					public void zoom(int diff) {
+						System.out.println("zoom " + diff);
+					}
+
+					@Override
+					public void scroll(int dx, int dy) {
+						System.out.println("scroll " + dx + "," + dy);
+					}
+
+					@Override
+					public void command(String command) {
+						System.out.println(command);
+					}
+				});
+		System.out.println("Listening on UDP port " + receiver.getPort());
+		receiver.start();
+		long reported = 0;
+		while (true) {
+			Thread.sleep(REPORT_INTERVAL);
+			long datagrams = receiver.getDatagrams();
+			if (datagrams == reported)
+				continue;
+			reported = datagrams;
+			System.out.printf("%d datagrams, %d rejected, %d lost, %d"
+					+ " duplicates, %d stale, jitter %.0f us, %d keys expired,"
+					+ " %d restored, %d sessions reset%n", datagrams,
+					receiver.getRejected(), receiver.getLost(),
+					receiver.getDuplicates(), receiver.getStale(),
+					receiver.getJitter(), receiver.getExpiredKeys(),
+					receiver.getRestoredKeys(), receiver.getResets());
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.linuxfunkar.mousekeysremote;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends a recorded {@link CommandLog} to a receiver through the same
+ * {@link CommandSender} the app uses, at the recorded pace, N times faster
+ * or as fast as possible. Commands are queued at their recorded offsets
+ * from the start; the report shows how late the replay got behind the
+ * schedule.
+ */
+public class Replayer {
+	// Parking is not precise, the last stretch before a command is spun
+	private static final long SPIN = 200000L; // 200 us
+
+	private static final int QUEUE_SIZE = 1024;
+
+	/**
+	 * Pings the server and records its version and capabilities for the
+	 * sender, as PingService does in the app.
+	 *
+	 * @return what the server announced, or what was known before if it
+	 *         didn't answer or the answer isn't a genuine pong
+	 */
+	static ServerInfo ping(String host, int port, KeyProvider keys)
+			throws Exception {
+		DatagramSocket socket = new DatagramSocket();
+		try {
+			socket.connect(new InetSocketAddress(host, port));
+			socket.setSoTimeout(2000);
+			byte[] msg = keys.getSecurity().encrypt("ping").getBytes("UTF-8");
+			socket.send(new DatagramPacket(msg, msg.length));
+			byte[] buf = new byte[64];
+			DatagramPacket response = new DatagramPacket(buf, buf.length);
+			socket.receive(response);
+			int version = Protocol.parsePongVersion(buf, 0,
+					response.getLength(), keys.getReplyAuthenticator());
+			if (version < 0)
+				// Forged or garbled, as good as no answer
+				return ServerInfo.get(host, port);
+			int capabilities = Protocol.parsePongCapabilities(buf, 0,
+					response.getLength());
+			ServerInfo info = new ServerInfo(host, port, version,
+					capabilities);
+			ServerInfo.update(info);
+			return info;
+		} catch (IOException ex) {
+			return ServerInfo.get(host, port);
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Usage: Replayer log [host] [port] [password] [speed]
+	 *
+	 * speed is 1 for the recorded pace (the default), a factor such as 4,
+	 * or "max".
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: Replayer log [host] [port] [password]"
+					+ " [1|N|max]");
+			System.exit(2);
+		}
+		String host = args.length > 1 ? args[1] : "127.0.0.1";
+		int port = args.length > 2 ? Integer.parseInt(args[2])
+				: ReferenceReceiver.DEFAULT_PORT;
+		String password = args.length > 3 ? args[3] : "";
+		String speedArg = args.length > 4 ? args[4] : "1";
+		double speed = speedArg.equals("max") ? 0 : Double
+				.parseDouble(speedArg);
+
+		KeyProvider keys = KeyProvider.get(password);
+		ServerInfo info = ping(host, port, keys);
+		System.out.println("Server version " + info.getVersion()
+				+ ", capabilities " + info.getCapabilities());
+
+		CommandSender sender = new CommandSender(QUEUE_SIZE, new String[0]);
+		UdpTransport transport = new UdpTransport(host, port);
+		sender.setKeys(keys);
+		sender.setTransport(transport);
+		sender.start();
+		transport.awaitResolved(2000);
+
+		CommandLog.Reader log = new CommandLog.Reader(new BufferedInputStream(
+				new FileInputStream(args[0])));
+		long commands = 0;
+		long maxLate = 0;
+		long totalLate = 0;
+		long start = System.nanoTime();
+		try {
+			while (log.next()) {
+				if (speed > 0) {
+					long due = start + (long) (log.getTime() / speed);
+					long wait;
+					while ((wait = due - System.nanoTime()) > 0) {
+						if (wait > SPIN)
+							LockSupport.parkNanos(wait - SPIN);
+					}
+					long late = System.nanoTime() - due;
+					maxLate = Math.max(maxLate, late);
+					totalLate += late;
+				}
+				// Wait for room rather than lose commands
+				while (sender.getQueueDepth() >= sender.getQueueCapacity())
+					LockSupport.parkNanos(10000);
+				sender.sendCommand(log.getCommand(), 0, log.getLength());
+				commands++;
+			}
+		} finally {
+			log.close();
+		}
+		sender.stop();
+		transport.close();
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%d commands in %.3f s (%.0f/s), %d datagrams sent,"
+				+ " %d failed%n", commands, seconds, commands / seconds,
+				sender.getSent(), sender.getFailed());
+		if (speed > 0 && commands > 0)
+			System.out.printf("Behind schedule: %.1f us average, %.1f us max%n",
+					totalLate / 1e3 / commands, maxLate / 1e3);
+	}
+}
@@ -0,0 +1,66 @@
+package com.linuxfunkar.mousekeysremote;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class KeyLeasesTest {
+	private static final long MS = 1000000L;
+	private static final int LEASE = 1500;
+	private static final int SHIFT = 1202;
+
+	private final StringBuilder events = new StringBuilder();
+	private final KeyLeases.LeaseListener listener = new KeyLeases.LeaseListener() {
+		@Override
+		public void onExpired(int code) {
+			events.append("expired ").append(code).append(';');
+		}
+
+		@Override
+		public void onRestored(int code) {
+			events.append("restored ").append(code).append(';');
+		}
+	};
+	private KeyLeases leases;
+
+	@Before
+	public void setUp() {
+		leases = new KeyLeases();
+		leases.renew(LEASE, new int[0], 0, 0, listener);
+		leases.press(SHIFT, 0);
+	}
+
+	@Test
+	public void keyHeldThroughOutageIsPressedAgain() {
+		// No renewal gets through for longer than the lease
+		leases.expire(2000 * MS, listener);
+		assertEquals(0, leases.size());
+
+		leases.renew(LEASE, new int[] { SHIFT }, 1, 2500 * MS, listener);
+		assertEquals("expired 1202;restored 1202;", events.toString());
+		assertEquals(1, leases.size());
+
+		// Held on with the new lease
+		leases.expire(3500 * MS, listener);
+		assertEquals(1, leases.size());
+	}
+
+	@Test
+	public void releasedKeyIsNotBroughtBack() {
+		leases.expire(2000 * MS, listener);
+		leases.release(SHIFT);
+		// A renewal sent before the release arrives after it
+		leases.renew(LEASE, new int[] { SHIFT }, 1, 2500 * MS, listener);
+		assertEquals("expired 1202;", events.toString());
+		assertEquals(0, leases.size());
+	}
+
+	@Test
+	public void renewalOfHeldKeyOnlyExtendsLease() {
+		leases.renew(LEASE, new int[] { SHIFT }, 1, 1000 * MS, listener);
+		leases.expire(2000 * MS, listener);
+		assertEquals("", events.toString());
+		assertEquals(1, leases.size());
+	}
+}
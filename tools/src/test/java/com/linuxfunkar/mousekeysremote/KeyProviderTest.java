@@ -0,0 +1,53 @@
+package com.linuxfunkar.mousekeysremote;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.PBEParameterSpec;
+
+import org.junit.Test;
+
+public class KeyProviderTest {
+	private static final byte[] salt = new byte[] { 67, (byte) 222, 18,
+			(byte) 174, 59, (byte) 243, 69, 125 };
+
+	/** Encrypts like the client did before the key was derived once */
+	private static String encryptPbe(String password, String msg)
+			throws Exception {
+		SecretKeyFactory factory = SecretKeyFactory
+				.getInstance("PBEWithMD5AndDES");
+		Cipher cipher = Cipher.getInstance("PBEWithMD5AndDES");
+		cipher.init(Cipher.ENCRYPT_MODE,
+				factory.generateSecret(new PBEKeySpec(password.toCharArray())),
+				new PBEParameterSpec(salt, 2048));
+		byte[] out = cipher.doFinal(msg.getBytes("UTF-8"));
+		return Base64Coder.encode(out, 0, out.length);
+	}
+
+	@Test
+	public void matchesPbeCipher() throws Exception {
+		assertEquals(encryptPbe("secret", "KBP1100"), KeyProvider
+				.get("secret").getSecurity().encrypt("KBP1100"));
+	}
+
+	@Test
+	public void usesLowByteOfEachChar() throws Exception {
+		// The PBE key factory on the phone keeps the low byte of each char,
+		// so this password gave the same key as "pw!". The JDK one only
+		// takes ASCII, hence the detour.
+		String password = "\u0170\u4e77\u2021";
+		assertEquals(encryptPbe("pw!", "KBP1100"), KeyProvider.get(password)
+				.getSecurity().encrypt("KBP1100"));
+	}
+
+	@Test
+	public void decryptsOwnMessages() throws Exception {
+		Security security = KeyProvider.get("\u00e9t\u00e9").getSecurity();
+		byte[] message = security.encrypt("ping").getBytes("US-ASCII");
+		assertArrayEquals("ping".getBytes("US-ASCII"),
+				security.decrypt(message, 0, message.length));
+	}
+}
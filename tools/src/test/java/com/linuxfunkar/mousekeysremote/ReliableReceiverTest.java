@@ -0,0 +1,76 @@
+package com.linuxfunkar.mousekeysremote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ReliableReceiverTest {
+	private static final int SESSION = 0x1234;
+
+	private final ReliableReceiver receiver = new ReliableReceiver();
+	private final StringBuilder delivered = new StringBuilder();
+	private final ReliableReceiver.PacketHandler handler = new ReliableReceiver.PacketHandler() {
+		@Override
+		public void onPacket(byte[] buf, int offset, int length) {
+			delivered.append(buf[offset]).append(';');
+		}
+	};
+
+	private boolean receive(int sequence, long now) {
+		byte[] packet = { (byte) sequence };
+		return receiver.receive(SESSION, sequence, packet, 0, 1, now,
+				handler);
+	}
+
+	@Test
+	public void deliversInOrder() {
+		assertFalse(receive(2, 0));
+		assertEquals("", delivered.toString());
+		assertTrue(receive(1, 0));
+		assertTrue(receive(3, 0));
+		assertEquals("1;2;3;", delivered.toString());
+		assertFalse(receiver.isLost());
+	}
+
+	@Test
+	public void skipsGapAfterTimeout() {
+		assertTrue(receive(1, 0));
+		assertTrue(receive(3, 0));
+		receiver.expire(ReliableReceiver.GAP_TIMEOUT, handler);
+		assertEquals("1;3;", delivered.toString());
+		assertEquals(1, receiver.getSkipped());
+	}
+
+	@Test
+	public void sessionBegunElsewhereIsLost() {
+		// The client was past its window when the receiver restarted
+		for (int sequence = 40; sequence < 45; sequence++)
+			assertFalse(receive(sequence, 0));
+		assertTrue(receiver.isLost());
+		receiver.expire(ReliableReceiver.GAP_TIMEOUT, handler);
+		assertEquals("", delivered.toString());
+	}
+
+	@Test
+	public void missingFirstPacketLosesSession() {
+		assertFalse(receive(5, 0));
+		assertFalse(receiver.isLost());
+		receiver.expire(ReliableReceiver.GAP_TIMEOUT, handler);
+		assertTrue(receiver.isLost());
+		assertEquals("", delivered.toString());
+		assertFalse(receive(6, ReliableReceiver.GAP_TIMEOUT));
+	}
+
+	@Test
+	public void newSessionStartsOver() {
+		receive(40, 0);
+		assertTrue(receiver.isLost());
+		byte[] packet = { 1 };
+		assertTrue(receiver.receive(SESSION + 1, 1, packet, 0, 1, 0,
+				handler));
+		assertFalse(receiver.isLost());
+		assertEquals("1;", delivered.toString());
+	}
+}